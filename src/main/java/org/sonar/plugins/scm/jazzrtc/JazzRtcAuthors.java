@@ -0,0 +1,293 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.StringStreamConsumer;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps the display names printed by annotate to the user ids or email addresses of the contributors, which SonarQube
+ * can match to its users. The contributors of each repository are listed once per analysis with a single command,
+ * and kept next to the blame cache until they expire. A display name shared by several contributors of a repository
+ * is not mapped.
+ */
+class JazzRtcAuthors {
+
+  private static final Logger LOG = Loggers.get(JazzRtcAuthors.class);
+
+  static final String FILENAME = "authors.cache";
+  static final JazzRtcAuthors AS_IS = new JazzRtcAuthors(Collections.<String, Map<String, String>>emptyMap());
+
+  // display name to user id or email, by repository id
+  private final Map<String, Map<String, String>> byRepository;
+
+  JazzRtcAuthors(Map<String, Map<String, String>> byRepository) {
+    this.byRepository = byRepository;
+  }
+
+  static class Contributor {
+    final String id;
+    final String name;
+    final String email;
+
+    Contributor(@Nullable String id, @Nullable String name, @Nullable String email) {
+      this.id = id;
+      this.name = name;
+      this.email = email;
+    }
+  }
+
+  static JazzRtcAuthors load(JazzRtcBlameCommand lscm, List<JazzRtcRepository> repositories, File workingDirectory, JazzRtcConfiguration config,
+    System2 system) {
+    String mapping = config.authorMapping();
+    if (!JazzRtcConfiguration.AUTHOR_ID.equals(mapping) && !JazzRtcConfiguration.AUTHOR_EMAIL.equals(mapping)) {
+      return AS_IS;
+    }
+    Map<String, Map<String, String>> byRepository = new HashMap<>();
+    for (JazzRtcRepository repository : repositories) {
+      List<Contributor> contributors = contributors(lscm, repository, workingDirectory, config, system);
+      if (contributors != null) {
+        byRepository.put(repository.id(), byName(repository.id(), contributors, mapping));
+      }
+    }
+    return byRepository.isEmpty() ? AS_IS : new JazzRtcAuthors(byRepository);
+  }
+
+  @CheckForNull
+  private static List<Contributor> contributors(JazzRtcBlameCommand lscm, JazzRtcRepository repository, File workingDirectory, JazzRtcConfiguration config,
+    System2 system) {
+    String cacheDir = config.cacheDir();
+    File file = cacheDir != null ? new File(cacheDir, filename(repository)) : null;
+    long maxAge = TimeUnit.HOURS.toMillis(config.authorCacheTtl());
+    List<Contributor> contributors = file != null ? read(file, system.now() - maxAge) : null;
+    if (contributors == null) {
+      contributors = list(lscm, repository, workingDirectory);
+      if (contributors == null) {
+        // better stale than nothing
+        contributors = file != null ? read(file, Long.MIN_VALUE) : null;
+      } else if (file != null) {
+        write(file, contributors, system.now());
+      }
+    }
+    return contributors;
+  }
+
+  static String filename(JazzRtcRepository repository) {
+    return JazzRtcRepository.DEFAULT_ID.equals(repository.id()) ? FILENAME : ("authors." + repository.id() + ".cache");
+  }
+
+  /**
+   * @return the user id or email of the contributors, by display name
+   */
+  static Map<String, String> byName(String repositoryId, List<Contributor> contributors, String mapping) {
+    Map<String, String> byName = new HashMap<>(contributors.size() * 2);
+    Set<String> ambiguous = new HashSet<>();
+    for (Contributor contributor : contributors) {
+      String value = JazzRtcConfiguration.AUTHOR_EMAIL.equals(mapping) && contributor.email != null ? contributor.email : contributor.id;
+      if (contributor.name == null || value == null || ambiguous.contains(contributor.name)) {
+        continue;
+      }
+      String other = byName.putIfAbsent(contributor.name, value);
+      if (other != null && !other.equals(value)) {
+        LOG.warn("Jazz RTC contributors {} and {} of repository {} are both named '{}', their lines are reported by name", other, value, repositoryId,
+          contributor.name);
+        byName.remove(contributor.name);
+        ambiguous.add(contributor.name);
+      }
+    }
+    LOG.debug("{} Jazz RTC contributors known in repository {}", byName.size(), repositoryId);
+    return byName;
+  }
+
+  boolean isEmpty() {
+    return byRepository.isEmpty();
+  }
+
+  /**
+   * Lines sharing a BlameLine still share it once mapped, and the blame given is never modified.
+   *
+   * @param repository the repository the file is loaded from
+   */
+  List<BlameLine> map(JazzRtcRepository repository, List<BlameLine> lines) {
+    Map<String, String> byName = byRepository.getOrDefault(repository.id(), Collections.<String, String>emptyMap());
+    if (byName.isEmpty()) {
+      return lines;
+    }
+    Map<BlameLine, BlameLine> mapped = new IdentityHashMap<>();
+    List<BlameLine> result = new ArrayList<>(lines.size());
+    for (BlameLine line : lines) {
+      result.add(mapped.computeIfAbsent(line, l -> map(byName, l)));
+    }
+    return result;
+  }
+
+  private static BlameLine map(Map<String, String> byName, BlameLine line) {
+    String author = line.author() != null ? byName.get(line.author()) : null;
+    if (author == null) {
+      return line;
+    }
+    return new BlameLine().date(line.date()).revision(line.revision()).author(author);
+  }
+
+  @CheckForNull
+  private static List<Contributor> list(JazzRtcBlameCommand lscm, JazzRtcRepository repository, File workingDirectory) {
+    String url = repository.url();
+    Command cl = url != null ? lscm.command(repository, workingDirectory, "list users", "-j", "-r", url)
+      : lscm.command(repository, workingDirectory, "list users", "-j");
+    StringBuilder json = new StringBuilder();
+    StringStreamConsumer stderr = new StringStreamConsumer();
+    try {
+      int exitCode = lscm.execute(repository, cl, line -> json.append(line).append('\n'), stderr);
+      if (exitCode != 0) {
+        LOG.warn("Unable to list the Jazz RTC contributors of repository {}, authors will be reported by name: {}", repository.id(), stderr.getOutput());
+        return null;
+      }
+      return parse(json.toString());
+    } catch (IllegalStateException | IOException e) {
+      LOG.warn("Unable to list the Jazz RTC contributors of repository " + repository.id() + ", authors will be reported by name", e);
+      return null;
+    }
+  }
+
+  static List<Contributor> parse(String json) throws IOException {
+    JazzRtcJsonReader reader = new JazzRtcJsonReader(new StringReader(json));
+    List<Contributor> contributors = new ArrayList<>();
+    if (reader.peek() == JazzRtcJsonReader.Token.BEGIN_ARRAY) {
+      readContributors(reader, contributors);
+      return contributors;
+    }
+    reader.beginObject();
+    while (reader.hasNext()) {
+      reader.nextName();
+      if (reader.peek() == JazzRtcJsonReader.Token.BEGIN_ARRAY) {
+        readContributors(reader, contributors);
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return contributors;
+  }
+
+  private static void readContributors(JazzRtcJsonReader reader, List<Contributor> contributors) throws IOException {
+    reader.beginArray();
+    while (reader.hasNext()) {
+      String userId = null;
+      String itemId = null;
+      String name = null;
+      String email = null;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String field = reader.nextName();
+        if ("userId".equals(field) || "user-id".equals(field)) {
+          userId = reader.nextString();
+        } else if ("id".equals(field)) {
+          // item id of the contributor, only when the user id is not listed
+          itemId = reader.nextString();
+        } else if ("name".equals(field)) {
+          name = reader.nextString();
+        } else if ("mail".equals(field) || "email".equals(field) || "emailAddress".equals(field)) {
+          email = reader.nextString();
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      contributors.add(new Contributor(userId != null ? userId : itemId, name, email));
+    }
+    reader.endArray();
+  }
+
+  /**
+   * @return the contributors saved after the given time, or null if there are none
+   */
+  @CheckForNull
+  static List<Contributor> read(File file, long notBefore) {
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+      if (lines.isEmpty() || Long.parseLong(lines.get(0)) < notBefore) {
+        return null;
+      }
+      List<Contributor> contributors = new ArrayList<>(lines.size());
+      for (String line : lines.subList(1, lines.size())) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length == 3) {
+          contributors.add(new Contributor(emptyToNull(fields[0]), emptyToNull(fields[1]), emptyToNull(fields[2])));
+        }
+      }
+      return contributors;
+    } catch (IOException | NumberFormatException e) {
+      LOG.warn("Unable to read the Jazz RTC contributors from " + file, e);
+      return null;
+    }
+  }
+
+  static void write(File file, List<Contributor> contributors, long now) {
+    List<String> lines = new ArrayList<>(contributors.size() + 1);
+    lines.add(String.valueOf(now));
+    for (Contributor contributor : contributors) {
+      lines.add(nullToEmpty(contributor.id) + "\t" + nullToEmpty(contributor.name) + "\t" + nullToEmpty(contributor.email));
+    }
+    try {
+      File parent = file.getAbsoluteFile().getParentFile();
+      Files.createDirectories(parent.toPath());
+      File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+      Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.warn("Unable to save the Jazz RTC contributors to " + file, e);
+    }
+  }
+
+  private static String nullToEmpty(@Nullable String value) {
+    return value != null ? value.replace('\t', ' ').replace('\n', ' ') : "";
+  }
+
+  @CheckForNull
+  private static String emptyToNull(String value) {
+    return value.isEmpty() ? null : value;
+  }
+}
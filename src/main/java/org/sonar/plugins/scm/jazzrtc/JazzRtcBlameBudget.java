@@ -0,0 +1,148 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Wall-clock budget of the annotates of an analysis. Once it is spent, no new annotate is started and the files left
+ * are remembered next to the blame cache, so that the next analysis annotates them first.
+ */
+class JazzRtcBlameBudget {
+
+  private static final Logger LOG = Loggers.get(JazzRtcBlameBudget.class);
+
+  static final String PENDING_FILENAME = "blame.pending";
+
+  private final System2 system;
+  private final long budget;
+  private final long deadline;
+  private final File pendingFile;
+  private final Map<String, Integer> pendingRanks = new HashMap<>();
+  private final List<String> postponed = new ArrayList<>();
+
+  JazzRtcBlameBudget(System2 system, long budget, @Nullable File pendingFile, List<String> previouslyPending) {
+    this.system = system;
+    this.budget = budget;
+    this.deadline = budget > 0 ? (system.now() + budget) : Long.MAX_VALUE;
+    this.pendingFile = pendingFile;
+    for (String filename : previouslyPending) {
+      pendingRanks.putIfAbsent(filename, pendingRanks.size());
+    }
+  }
+
+  static JazzRtcBlameBudget unlimited(System2 system) {
+    return new JazzRtcBlameBudget(system, 0, null, Collections.<String>emptyList());
+  }
+
+  static JazzRtcBlameBudget start(JazzRtcConfiguration config, System2 system) {
+    long budget = config.blameBudget();
+    String cacheDir = config.cacheDir();
+    if (cacheDir == null) {
+      if (budget > 0) {
+        LOG.warn("The files left when the blame budget is spent are only annotated first by the next analysis when {} is set",
+          JazzRtcConfiguration.CACHE_DIR_PROP_KEY);
+      }
+      return new JazzRtcBlameBudget(system, budget, null, Collections.<String>emptyList());
+    }
+    File pendingFile = new File(cacheDir, PENDING_FILENAME);
+    List<String> pending = new ArrayList<>();
+    if (pendingFile.isFile()) {
+      try {
+        pending = Files.readAllLines(pendingFile.toPath(), StandardCharsets.UTF_8);
+      } catch (IOException e) {
+        LOG.warn("Unable to read the files left by the previous analysis from " + pendingFile, e);
+      }
+    }
+    return new JazzRtcBlameBudget(system, budget, pendingFile, pending);
+  }
+
+  boolean isExhausted() {
+    return deadline != Long.MAX_VALUE && system.now() >= deadline;
+  }
+
+  /**
+   * Commands never outlive the budget.
+   */
+  long timeout(long commandTimeout) {
+    if (deadline == Long.MAX_VALUE) {
+      return commandTimeout;
+    }
+    return Math.max(1, Math.min(commandTimeout, deadline - system.now()));
+  }
+
+  /**
+   * @return the files, those left by the previous analysis first
+   */
+  <T> List<T> prioritize(Iterable<T> files, Function<T, String> filename) {
+    Map<Integer, T> pending = new TreeMap<>();
+    List<T> others = new ArrayList<>();
+    for (T file : files) {
+      Integer rank = pendingRanks.isEmpty() ? null : pendingRanks.get(filename.apply(file));
+      if (rank != null) {
+        pending.put(rank, file);
+      } else {
+        others.add(file);
+      }
+    }
+    List<T> prioritized = new ArrayList<>(pending.values());
+    prioritized.addAll(others);
+    return prioritized;
+  }
+
+  synchronized void postpone(String filename) {
+    postponed.add(filename);
+  }
+
+  synchronized void save() {
+    if (!postponed.isEmpty()) {
+      LOG.warn("Blame time budget of {} ms spent, {} files left for the next analysis", budget, postponed.size());
+    }
+    if (pendingFile == null) {
+      return;
+    }
+    try {
+      if (postponed.isEmpty()) {
+        Files.deleteIfExists(pendingFile.toPath());
+      } else {
+        Files.createDirectories(pendingFile.getAbsoluteFile().getParentFile().toPath());
+        Files.write(pendingFile.toPath(), postponed, StandardCharsets.UTF_8);
+      }
+    } catch (IOException e) {
+      LOG.warn("Unable to write the files left for the next analysis to " + pendingFile, e);
+    }
+  }
+}
@@ -0,0 +1,351 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Blame results of the previous analyses, with the digest of the content and the hash of every line they were
+ * computed on. A file whose content did not change is served as is, a file changed by a few lines gets the cached
+ * blame shifted along a line diff, the inserted or modified lines being attributed to a configurable author instead
+ * of running a new annotate.
+ */
+class JazzRtcBlameCache {
+
+  private static final Logger LOG = Loggers.get(JazzRtcBlameCache.class);
+
+  static final String FILENAME = "blame.cache";
+  static final String UNCOMMITTED_REVISION = "uncommitted";
+  // beyond that, a new annotate is cheaper than tracking the cached blame through the diff
+  private static final double MAX_PATCHED_RATIO = 0.2;
+  private static final int MAX_EDITS = 1000;
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final File file;
+  private final Map<String, JazzRtcBlameStore.Entry> entries;
+  private final Map<String, Content> snapshots = new ConcurrentHashMap<>();
+  private final BlameLine uncommitted;
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger patches = new AtomicInteger();
+
+  JazzRtcBlameCache(File file, Map<String, JazzRtcBlameStore.Entry> entries, BlameLine uncommitted) {
+    this.file = file;
+    this.entries = new ConcurrentHashMap<>(entries);
+    this.uncommitted = uncommitted;
+  }
+
+  /**
+   * Content of a file: its digest tells whether it changed, the 64 bits hashes of its lines are only used to diff it.
+   */
+  static class Content {
+    final long[] lineHashes;
+    final byte[] digest;
+
+    Content(long[] lineHashes, byte[] digest) {
+      this.lineHashes = lineHashes;
+      this.digest = digest;
+    }
+  }
+
+  static JazzRtcBlameCache load(File dir, String uncommittedAuthor, Date now) {
+    File file = new File(dir, FILENAME);
+    Map<String, JazzRtcBlameStore.Entry> entries = new HashMap<>();
+    if (file.isFile()) {
+      try {
+        entries = JazzRtcBlameStore.read(file);
+      } catch (IOException e) {
+        LOG.warn("Unable to read blame cache " + file + ", it will be rebuilt", e);
+      }
+    }
+    LOG.debug("{} files in blame cache {}", entries.size(), file);
+    return new JazzRtcBlameCache(file, entries, new BlameLine().date(now).revision(UNCOMMITTED_REVISION).author(uncommittedAuthor));
+  }
+
+  /**
+   * @return the blame of the file from the cache, or null if it has to be computed. The current content of the
+   * file is then kept for {@link #put(String, List)}.
+   */
+  @CheckForNull
+  List<BlameLine> get(String filename, InputFile inputFile) {
+    Content current = content(inputFile);
+    if (current == null) {
+      return null;
+    }
+    return get(filename, current, true);
+  }
+
+  /**
+   * @param current content of the file
+   * @param patch false to only serve the files whose content did not change
+   */
+  @CheckForNull
+  List<BlameLine> get(String filename, Content current, boolean patch) {
+    JazzRtcBlameStore.Entry entry = entries.get(filename);
+    long[] previous = entry != null ? entry.lineHashes() : null;
+    if (previous != null && entry.digest() != null && previous.length == entry.lines().size()) {
+      if (MessageDigest.isEqual(entry.digest(), current.digest)) {
+        // lines attributed locally are not trusted for ever: Jazz RTC knows better once the change is delivered
+        if (!entry.isPatched()) {
+          hits.incrementAndGet();
+          return new ArrayList<>(entry.lines());
+        }
+      } else if (patch) {
+        List<BlameLine> patched = patch(entry.lines(), previous, current.lineHashes);
+        if (patched != null) {
+          patches.incrementAndGet();
+          entries.put(filename, new JazzRtcBlameStore.Entry(patched, current.lineHashes, current.digest, true));
+          return patched;
+        }
+      }
+    }
+    snapshots.put(filename, current);
+    return null;
+  }
+
+  /**
+   * Stores the blame computed for a file previously looked up with {@link #get(String, InputFile)} or
+   * {@link #get(String, Content, boolean)}.
+   */
+  void put(String filename, List<BlameLine> lines) {
+    Content snapshot = snapshots.remove(filename);
+    if (snapshot != null && snapshot.lineHashes.length == lines.size()) {
+      entries.put(filename, new JazzRtcBlameStore.Entry(new ArrayList<>(lines), snapshot.lineHashes, snapshot.digest, false));
+    }
+  }
+
+  /**
+   * Forgets the files deleted or moved since they were cached, otherwise the cache would only grow.
+   *
+   * @param roots directories the cached paths are relative to
+   */
+  void evictMissing(Collection<File> roots) {
+    if (roots.isEmpty()) {
+      return;
+    }
+    int before = entries.size();
+    entries.keySet().removeIf(filename -> roots.stream().noneMatch(root -> new File(root, filename).isFile()));
+    LOG.debug("{} files evicted from the blame cache", before - entries.size());
+  }
+
+  void save() {
+    try {
+      JazzRtcBlameStore.writeEntries(file, entries);
+    } catch (IOException e) {
+      LOG.warn("Unable to write blame cache " + file, e);
+    }
+    LOG.info("Blame cache: {} files unchanged, {} files patched", hits.get(), patches.get());
+  }
+
+  @CheckForNull
+  private List<BlameLine> patch(List<BlameLine> lines, long[] previous, long[] current) {
+    // a modified line counts as one deletion and one insertion
+    int maxEdits = (int) Math.min(MAX_EDITS, Math.max(2, 2 * current.length * MAX_PATCHED_RATIO));
+    int[] origins = matchLines(previous, current, maxEdits);
+    if (origins == null) {
+      return null;
+    }
+    List<BlameLine> patched = new ArrayList<>(current.length);
+    for (int origin : origins) {
+      patched.add(origin >= 0 ? lines.get(origin) : uncommitted);
+    }
+    return patched;
+  }
+
+  /**
+   * Myers' diff on the line hashes, bounded to a number of edits.
+   *
+   * @return for every current line, the index of the same line in the previous content or -1 if it was inserted or
+   * modified, or null if there are more than maxEdits line insertions and deletions
+   */
+  @CheckForNull
+  static int[] matchLines(long[] previous, long[] current, int maxEdits) {
+    int prefix = 0;
+    while (prefix < previous.length && prefix < current.length && previous[prefix] == current[prefix]) {
+      prefix++;
+    }
+    int suffix = 0;
+    while (suffix < previous.length - prefix && suffix < current.length - prefix
+      && previous[previous.length - 1 - suffix] == current[current.length - 1 - suffix]) {
+      suffix++;
+    }
+    int n = previous.length - prefix - suffix;
+    int m = current.length - prefix - suffix;
+
+    int[] origins = new int[current.length];
+    for (int i = 0; i < prefix; i++) {
+      origins[i] = i;
+    }
+    for (int i = 0; i < suffix; i++) {
+      origins[current.length - 1 - i] = previous.length - 1 - i;
+    }
+    if (Math.abs(n - m) > maxEdits) {
+      return null;
+    }
+
+    int max = Math.min(n + m, maxEdits);
+    int offset = max + 1;
+    int[] v = new int[2 * max + 3];
+    List<int[]> trace = new ArrayList<>();
+    int found = -1;
+    for (int d = 0; d <= max && found < 0; d++) {
+      trace.add(v.clone());
+      for (int k = -d; k <= d; k += 2) {
+        int x;
+        if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+          x = v[offset + k + 1];
+        } else {
+          x = v[offset + k - 1] + 1;
+        }
+        int y = x - k;
+        while (x < n && y < m && previous[prefix + x] == current[prefix + y]) {
+          x++;
+          y++;
+        }
+        v[offset + k] = x;
+        if (x >= n && y >= m) {
+          found = d;
+          break;
+        }
+      }
+    }
+    if (found < 0) {
+      return null;
+    }
+
+    // walk the trace backwards, matching the diagonals
+    int x = n;
+    int y = m;
+    Arrays.fill(origins, prefix, prefix + m, -1);
+    for (int d = found; d > 0; d--) {
+      int[] previousV = trace.get(d);
+      int k = x - y;
+      int previousK = (k == -d || (k != d && previousV[offset + k - 1] < previousV[offset + k + 1])) ? (k + 1) : (k - 1);
+      int previousX = previousV[offset + previousK];
+      int previousY = previousX - previousK;
+      while (x > previousX && y > previousY) {
+        x--;
+        y--;
+        origins[prefix + y] = prefix + x;
+      }
+      x = previousX;
+      y = previousY;
+    }
+    while (x > 0 && y > 0) {
+      x--;
+      y--;
+      origins[prefix + y] = prefix + x;
+    }
+    return origins;
+  }
+
+  /**
+   * @return the content of the file, or null if it does not match the lines counted by the scanner
+   */
+  @CheckForNull
+  static Content content(InputFile inputFile) {
+    String content;
+    try {
+      content = inputFile.contents();
+    } catch (IOException e) {
+      LOG.debug("Unable to read " + inputFile, e);
+      return null;
+    }
+    long[] hashes = lineHashes(content);
+    return hashes.length == inputFile.lines() ? new Content(hashes, digest(content)) : null;
+  }
+
+  /**
+   * @return the digest of the content of the file, or null if it cannot be read
+   */
+  @CheckForNull
+  static byte[] digest(InputFile inputFile) {
+    try {
+      return digest(inputFile.contents());
+    } catch (IOException e) {
+      LOG.debug("Unable to read " + inputFile, e);
+      return null;
+    }
+  }
+
+  static Content content(String content) {
+    return new Content(lineHashes(content), digest(content));
+  }
+
+  static byte[] digest(String content) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM provides SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Lines are counted like the scanner does: \n, \r\n and \r end a line, and the last line is counted even if empty.
+   * Lines are hashed with 64 bits FNV-1a.
+   */
+  static long[] lineHashes(CharSequence content) {
+    long[] hashes = new long[16];
+    int line = 0;
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < content.length(); i++) {
+      char c = content.charAt(i);
+      if (c == '\n' || c == '\r') {
+        if (c == '\r' && i + 1 < content.length() && content.charAt(i + 1) == '\n') {
+          i++;
+        }
+        if (line == hashes.length) {
+          hashes = Arrays.copyOf(hashes, 2 * line);
+        }
+        hashes[line++] = hash;
+        hash = FNV_OFFSET_BASIS;
+      } else {
+        hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+        hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+      }
+    }
+    if (line == hashes.length) {
+      hashes = Arrays.copyOf(hashes, line + 1);
+    }
+    hashes[line++] = hash;
+    return Arrays.copyOf(hashes, line);
+  }
+}
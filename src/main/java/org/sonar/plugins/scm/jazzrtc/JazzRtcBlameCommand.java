@@ -21,9 +21,35 @@ package org.sonar.plugins.scm.jazzrtc;
 
 import org.sonar.api.utils.System2;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongToIntFunction;
 
 import org.sonar.api.batch.fs.FileSystem;
 import org.sonar.api.batch.fs.InputFile;
@@ -41,12 +67,28 @@ public class JazzRtcBlameCommand extends BlameCommand {
 
   private static final Logger LOG = Loggers.get(JazzRtcBlameCommand.class);
   private static final List<Integer> UNTRACKED_BLAME_RETURN_CODES = Arrays.asList(1, 3, 30);
-  private final CommandExecutor commandExecutor;
+  private final JazzRtcExecutor lscm;
+  private final JazzRtcProcesses processes;
+  private JazzRtcExecutor executor;
+  private JazzRtcBlameCache cache;
+  // directories the paths of the blamed files are relative to
+  private final Set<File> workingDirs = ConcurrentHashMap.newKeySet();
+  private volatile Boolean jsonAnnotate;
+  private JazzRtcBlameBudget budget;
+  private JazzRtcBlamePolicy policy;
+  private File spillDir;
+  private JazzRtcAuthors authors = JazzRtcAuthors.AS_IS;
+  private JazzRtcRepositories repositories;
   private final JazzRtcConfiguration config;
   private final System2 system;
+  private final JazzRtcSandboxIndex sandboxIndex;
+
+  public JazzRtcBlameCommand(JazzRtcConfiguration configuration, JazzRtcSandboxIndex sandboxIndex) {
+    this(new JazzRtcProcesses(), configuration, sandboxIndex);
+  }
 
-  public JazzRtcBlameCommand(JazzRtcConfiguration configuration) {
-    this(CommandExecutor.create(), configuration);
+  private JazzRtcBlameCommand(JazzRtcProcesses processes, JazzRtcConfiguration configuration, JazzRtcSandboxIndex sandboxIndex) {
+    this(new JazzRtcProcessExecutor(System2.INSTANCE, processes), processes, configuration, System2.INSTANCE, sandboxIndex);
   }
 
   JazzRtcBlameCommand(CommandExecutor commandExecutor, JazzRtcConfiguration configuration) {
@@ -54,60 +96,597 @@ public class JazzRtcBlameCommand extends BlameCommand {
   }
 
   JazzRtcBlameCommand(CommandExecutor commandExecutor, JazzRtcConfiguration configuration, System2 system) {
-    this.commandExecutor = commandExecutor;
+    this(commandExecutor, configuration, system, new JazzRtcSandboxIndex());
+  }
+
+  JazzRtcBlameCommand(CommandExecutor commandExecutor, JazzRtcConfiguration configuration, System2 system, JazzRtcSandboxIndex sandboxIndex) {
+    this(commandExecutor::execute, configuration, system, sandboxIndex);
+  }
+
+  JazzRtcBlameCommand(JazzRtcExecutor lscm, JazzRtcConfiguration configuration, System2 system, JazzRtcSandboxIndex sandboxIndex) {
+    this(lscm, new JazzRtcProcesses(), configuration, system, sandboxIndex);
+  }
+
+  JazzRtcBlameCommand(JazzRtcExecutor lscm, JazzRtcProcesses processes, JazzRtcConfiguration configuration, System2 system,
+    JazzRtcSandboxIndex sandboxIndex) {
+    this.lscm = lscm;
+    this.processes = processes;
+    this.executor = lscm;
     this.config = configuration;
     this.system = system;
+    this.sandboxIndex = sandboxIndex;
+    this.budget = JazzRtcBlameBudget.unlimited(system);
+    this.policy = JazzRtcBlamePolicy.annotateAll();
   }
 
   @Override
   public void blame(BlameInput input, BlameOutput output) {
     FileSystem fs = input.fileSystem();
     LOG.debug("Working directory: " + fs.baseDir().getAbsolutePath());
-    for (InputFile inputFile : input.filesToBlame()) {
-      blame(fs, inputFile, output);
+    processes.checkOrphans(config.terminateOrphans());
+    executor = baseExecutor();
+    jsonAnnotate = null;
+    JazzRtcRecorder recorder = startRecording();
+    cache = openCache();
+    budget = JazzRtcBlameBudget.start(config, system);
+    policy = JazzRtcBlamePolicy.of(config);
+    spillDir = config.annotateSpill() ? spillDir(fs) : null;
+    try {
+      Path sandboxRoot = sandboxIndex.sandboxRoot(fs.baseDir().toPath());
+      repositories = JazzRtcRepositories.of(this, config);
+      authors = JazzRtcAuthors.load(this, repositories.all(), sandboxRoot != null ? sandboxRoot.toFile() : fs.baseDir(), config, system);
+      Iterable<InputFile> filesToBlame = budget.prioritize(input.filesToBlame(), inputFile -> target(fs.baseDir(), inputFile).filename);
+      if (cache != null) {
+        filesToBlame = blameFromCache(fs.baseDir(), filesToBlame, output);
+      }
+      if (JazzRtcConfiguration.HISTORY_ENGINE.equals(config.blameEngine())) {
+        filesToBlame = blameFromHistory(fs.baseDir(), filesToBlame, output);
+      }
+      if (config.shardCount() > 1) {
+        blameSharded(fs.baseDir(), filesToBlame, output);
+        return;
+      }
+      if (!repositories.isEmpty()) {
+        blameRouted(fs.baseDir(), filesToBlame, output);
+        return;
+      }
+      for (InputFile inputFile : filesToBlame) {
+        blame(fs.baseDir(), inputFile, output);
+      }
+    } finally {
+      cancelRunning();
+      authors = JazzRtcAuthors.AS_IS;
+      repositories = null;
+      policy.logSummary();
+      policy = JazzRtcBlamePolicy.annotateAll();
+      spillDir = null;
+      budget.save();
+      budget = JazzRtcBlameBudget.unlimited(system);
+      executor = lscm;
+      if (cache != null) {
+        cache.evictMissing(workingDirs);
+        cache.save();
+        cache = null;
+      }
+      workingDirs.clear();
+      stopRecording(recorder);
+    }
+  }
+
+  private static File spillDir(FileSystem fs) {
+    File workDir = fs.workDir();
+    return new File(workDir != null ? workDir : new File(System.getProperty("java.io.tmpdir")), "jazzrtc");
+  }
+
+  /**
+   * Nothing should be running anymore, unless the blame failed while commands were in flight.
+   */
+  private void cancelRunning() {
+    int cancelled = processes.cancelAll();
+    if (cancelled > 0) {
+      LOG.warn("{} lscm processes still running at the end of the blame were stopped", cancelled);
+    }
+  }
+
+  @CheckForNull
+  private JazzRtcBlameCache openCache() {
+    String cacheDir = config.cacheDir();
+    if (cacheDir == null) {
+      return null;
+    }
+    return JazzRtcBlameCache.load(new File(cacheDir), config.uncommittedAuthor(), new Date(system.now()));
+  }
+
+  /**
+   * @return the files that are not in the cache, or changed too much to be patched
+   */
+  private List<InputFile> blameFromCache(File baseDir, Iterable<InputFile> filesToBlame, BlameOutput output) {
+    List<InputFile> remaining = new ArrayList<>();
+    for (InputFile inputFile : filesToBlame) {
+      Target target = target(baseDir, inputFile);
+      List<BlameLine> lines = cache.get(target.filename, inputFile);
+      if (lines != null) {
+        output.blameResult(inputFile, mapAuthors(target, inputFile, lines));
+      } else {
+        remaining.add(inputFile);
+      }
+    }
+    return remaining;
+  }
+
+  private void submit(Target target, InputFile inputFile, List<BlameLine> lines, BlameOutput output) {
+    if (cache != null) {
+      cache.put(target.filename, lines);
+    }
+    output.blameResult(inputFile, mapAuthors(target, inputFile, lines));
+  }
+
+  /**
+   * The authors are mapped with the contributors of the repository the file is loaded from.
+   */
+  private List<BlameLine> mapAuthors(Target target, InputFile inputFile, List<BlameLine> lines) {
+    return authors.isEmpty() ? lines : authors.map(route(target, inputFile), lines);
+  }
+
+  private JazzRtcRepository route(Target target, InputFile inputFile) {
+    String componentRoot = "file".equals(inputFile.uri().getScheme()) ? sandboxIndex.componentRoot(Paths.get(inputFile.uri())) : null;
+    return repositories.route(componentRoot != null ? target.workingDir.toPath() : null, componentRoot);
+  }
+
+  private JazzRtcExecutor baseExecutor() {
+    String replayFile = config.replayFile();
+    if (replayFile != null) {
+      return JazzRtcReplayExecutor.load(new File(replayFile), config.replayTimeScale());
+    }
+    return lscm;
+  }
+
+  @CheckForNull
+  private JazzRtcRecorder startRecording() {
+    String recordFile = config.recordFile();
+    if (recordFile == null) {
+      return null;
     }
+    try {
+      JazzRtcRecorder recorder = new JazzRtcRecorder(executor, new File(recordFile));
+      executor = recorder;
+      return recorder;
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to record lscm commands to " + recordFile, e);
+    }
+  }
+
+  private void stopRecording(@Nullable JazzRtcRecorder recorder) {
+    if (recorder == null) {
+      return;
+    }
+    try {
+      recorder.close();
+    } catch (IOException e) {
+      LOG.warn("Unable to complete the lscm recording", e);
+    }
+  }
+
+  /**
+   * Blames the files of each component from its history. The components are those the top level folders of the
+   * sandbox are loaded from, as listed by the sandbox structure.
+   *
+   * @return the files that could not be blamed that way
+   */
+  private List<InputFile> blameFromHistory(File baseDir, Iterable<InputFile> filesToBlame, BlameOutput output) {
+    List<InputFile> remaining = new ArrayList<>();
+    Map<Path, JazzRtcSandboxStructure> structures = new LinkedHashMap<>();
+    Map<Path, Map<String, Map<String, InputFile>>> filesBySandboxAndComponent = new LinkedHashMap<>();
+    Map<Path, Map<String, JazzRtcRepository>> repositoriesBySandboxAndComponent = new LinkedHashMap<>();
+    for (InputFile inputFile : filesToBlame) {
+      Path path = "file".equals(inputFile.uri().getScheme()) ? Paths.get(inputFile.uri()).normalize() : null;
+      String folder = path != null ? sandboxIndex.componentRoot(path) : null;
+      if (folder == null) {
+        remaining.add(inputFile);
+        continue;
+      }
+      Target target = target(baseDir, inputFile);
+      String component = structures.computeIfAbsent(target.workingDir.toPath(), root -> JazzRtcSandboxStructure.of(this, root)).component(folder);
+      if (component == null) {
+        // not loaded from Jazz RTC
+        remaining.add(inputFile);
+        continue;
+      }
+      filesBySandboxAndComponent.computeIfAbsent(target.workingDir.toPath(), k -> new LinkedHashMap<>())
+        .computeIfAbsent(component, k -> new LinkedHashMap<>())
+        .put(target.filename, inputFile);
+      repositoriesBySandboxAndComponent.computeIfAbsent(target.workingDir.toPath(), k -> new LinkedHashMap<>())
+        .computeIfAbsent(component, k -> route(target, inputFile));
+    }
+
+    JazzRtcHistoryBlame engine = new JazzRtcHistoryBlame(this, config.historyMaxChangesets());
+    int blamed = 0;
+    for (Map.Entry<Path, Map<String, Map<String, InputFile>>> sandbox : filesBySandboxAndComponent.entrySet()) {
+      for (Map.Entry<String, Map<String, InputFile>> component : sandbox.getValue().entrySet()) {
+        Map<String, InputFile> files = component.getValue();
+        if (budget.isExhausted()) {
+          remaining.addAll(files.values());
+          continue;
+        }
+        Map<String, List<BlameLine>> results;
+        try {
+          JazzRtcRepository repository = repositoriesBySandboxAndComponent.get(sandbox.getKey()).get(component.getKey());
+          results = engine.blame(repository, sandbox.getKey().toFile(), component.getKey(), files.keySet());
+        } catch (IllegalStateException e) {
+          if (!isBudgetTimeout(e)) {
+            throw e;
+          }
+          LOG.debug("History of component {} interrupted by the end of the time budget", component.getKey());
+          remaining.addAll(files.values());
+          continue;
+        }
+        for (Map.Entry<String, InputFile> file : files.entrySet()) {
+          List<BlameLine> lines = results.get(file.getKey());
+          InputFile inputFile = file.getValue();
+          if (lines != null && lines.size() == inputFile.lines() - 1 && !lines.isEmpty()) {
+            // SONARPLUGINS-3097 same as annotate, the last empty line is not part of the history
+            lines.add(lines.get(lines.size() - 1));
+          }
+          if (lines != null && lines.size() == inputFile.lines() && isDated(lines)) {
+            submit(new Target(sandbox.getKey().toFile(), file.getKey()), inputFile, lines, output);
+            blamed++;
+          } else {
+            remaining.add(inputFile);
+          }
+        }
+      }
+    }
+    LOG.info("{} files blamed from history, {} left to annotate", blamed, remaining.size());
+    return remaining;
+  }
+
+  private static boolean isDated(List<BlameLine> lines) {
+    for (BlameLine line : lines) {
+      if (line.date() == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void blameSharded(File baseDir, Iterable<InputFile> filesToBlame, BlameOutput output) {
+    JazzRtcBlameShards shards = JazzRtcBlameShards.of(config);
+    Integer shardIndex = config.shardIndex();
+    if (shardIndex != null) {
+      // worker: only annotate our partition and hand the results over to the merging analysis
+      Map<String, JazzRtcBlameStore.Entry> results = new LinkedHashMap<>();
+      try {
+        for (InputFile inputFile : filesToBlame) {
+          Target target = target(baseDir, inputFile);
+          if (shards.shardOf(target.filename) != shardIndex) {
+            continue;
+          }
+          List<BlameLine> lines = blameWithinBudget(route(target, inputFile), target, inputFile);
+          byte[] digest = lines != null ? JazzRtcBlameCache.digest(inputFile) : null;
+          if (digest != null) {
+            results.put(target.filename, new JazzRtcBlameStore.Entry(lines, null, digest, false));
+          }
+        }
+      } finally {
+        // whatever was blamed is not lost, the merging analysis annotates the rest
+        shards.write(shardIndex, results);
+      }
+      return;
+    }
+
+    Map<String, JazzRtcBlameStore.Entry> merged = shards.readAll();
+    int fromShards = 0;
+    for (InputFile inputFile : filesToBlame) {
+      Target target = target(baseDir, inputFile);
+      JazzRtcBlameStore.Entry entry = merged.get(target.filename);
+      // the file may have changed since the worker blamed it
+      if (entry != null && entry.lines().size() == inputFile.lines() && isSameContent(entry, inputFile)) {
+        submit(target, inputFile, entry.lines(), output);
+        fromShards++;
+      } else {
+        blame(target, inputFile, output);
+      }
+    }
+    shards.deleteAll();
+    LOG.info("{} files blamed from {} shards", fromShards, shards.count());
+  }
+
+  private static boolean isSameContent(JazzRtcBlameStore.Entry entry, InputFile inputFile) {
+    byte[] digest = JazzRtcBlameCache.digest(inputFile);
+    return entry.digest() != null && digest != null && MessageDigest.isEqual(entry.digest(), digest);
+  }
+
+  /**
+   * Every repository annotates its files with its own pool of threads, so that a slow repository does not hold the
+   * files of the others back.
+   */
+  private void blameRouted(File baseDir, Iterable<InputFile> filesToBlame, BlameOutput output) {
+    Map<String, ExecutorService> pools = new LinkedHashMap<>();
+    Map<String, AtomicInteger> counts = new LinkedHashMap<>();
+    List<Future<?>> tasks = new ArrayList<>();
+    try {
+      for (InputFile inputFile : filesToBlame) {
+        Target target = target(baseDir, inputFile);
+        JazzRtcRepository repository = route(target, inputFile);
+        ExecutorService pool = pools.computeIfAbsent(repository.id(), id -> newPool(repository));
+        counts.computeIfAbsent(repository.id(), id -> new AtomicInteger()).incrementAndGet();
+        tasks.add(pool.submit(() -> blame(repository, target, inputFile, output)));
+      }
+      LOG.debug("Files to annotate by repository: {}", counts);
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while blaming", e);
+    } catch (ExecutionException e) {
+      // do not wait for the annotates of the other repositories to complete
+      processes.cancelAll();
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException("Unable to blame", e.getCause());
+    } finally {
+      pools.values().forEach(ExecutorService::shutdownNow);
+    }
+  }
+
+  private static ExecutorService newPool(JazzRtcRepository repository) {
+    AtomicInteger threadCount = new AtomicInteger();
+    return Executors.newFixedThreadPool(repository.threads(), runnable -> {
+      Thread thread = new Thread(runnable, "jazzrtc-" + repository.id() + "-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
 
+  private void blame(File baseDir, InputFile inputFile, BlameOutput output) {
+    blame(target(baseDir, inputFile), inputFile, output);
   }
 
-  private void blame(FileSystem fs, InputFile inputFile, BlameOutput output) {
-    String filename;
-    if ("file".equals(inputFile.uri().getScheme())) {
-      filename = inputFile.uri().getSchemeSpecificPart().replace("//" + fs.baseDir() + "/", "");
-    } else {
+  private void blame(Target target, InputFile inputFile, BlameOutput output) {
+    blame(route(target, inputFile), target, inputFile, output);
+  }
+
+  private void blame(JazzRtcRepository repository, Target target, InputFile inputFile, BlameOutput output) {
+    List<BlameLine> lines = blameWithinBudget(repository, target, inputFile);
+    if (lines != null) {
+      submit(target, inputFile, lines, output);
+    }
+  }
+
+  /**
+   * @return the blame of each line, or null if the file is not tracked by Jazz RTC, not to be blamed, or postponed
+   * to the next analysis because the time budget is spent
+   */
+  @CheckForNull
+  private List<BlameLine> blameWithinBudget(JazzRtcRepository repository, Target target, InputFile inputFile) {
+    if (budget.isExhausted()) {
+      budget.postpone(target.filename);
+      return null;
+    }
+    try {
+      return blameLines(repository, target, inputFile);
+    } catch (IllegalStateException e) {
+      if (!isBudgetTimeout(e)) {
+        throw e;
+      }
+      LOG.debug("Blame of {} interrupted by the end of the time budget", target.filename);
+      budget.postpone(target.filename);
+      return null;
+    }
+  }
+
+  /**
+   * Commands are given the time left of the budget at most, their timeout is then the end of the budget. Any
+   * other failure is a real one.
+   */
+  private boolean isBudgetTimeout(IllegalStateException e) {
+    return e.getCause() instanceof TimeoutException && budget.isExhausted();
+  }
+
+  /**
+   * lscm is executed from the sandbox root of the file, with the path relative to it. Files outside of any sandbox
+   * are resolved against the project base directory.
+   */
+  private Target target(File baseDir, InputFile inputFile) {
+    if (!"file".equals(inputFile.uri().getScheme())) {
       LOG.warn("Could not get file location from uri, using toString instead");
-      filename = inputFile.toString();
+      return new Target(baseDir, inputFile.toString());
     }
-    Command cl = createCommandLine(fs.baseDir(), filename);
-    JazzRtcBlameConsumer consumer = new JazzRtcBlameConsumer(filename);
+    Path path = Paths.get(inputFile.uri()).normalize();
+    Path sandboxRoot = sandboxIndex.sandboxRoot(path.getParent());
+    File workingDir = sandboxRoot != null ? sandboxRoot.toFile() : baseDir.toPath().toAbsolutePath().normalize().toFile();
+    workingDirs.add(workingDir);
+    return new Target(workingDir, workingDir.toPath().relativize(path));
+  }
+
+  /**
+   * @return the blame of each line, or null if the file is not tracked by Jazz RTC or not to be blamed
+   */
+  @CheckForNull
+  private List<BlameLine> blameLines(JazzRtcRepository repository, Target target, InputFile inputFile) {
+    switch (policy.decide(target.filename, inputFile)) {
+      case SKIP:
+        return null;
+      case COARSE:
+        return lastChangeset(repository, target, inputFile.lines());
+      default:
+        return annotate(repository, target.workingDir, target.filename, inputFile.lines());
+    }
+  }
+
+  /**
+   * Attributes every line of the file to the last change set that modified it, which only costs a history query
+   * instead of an annotate.
+   *
+   * @return the blame of each line, or null if the file is not tracked by Jazz RTC or its history is not available
+   */
+  @CheckForNull
+  private List<BlameLine> lastChangeset(JazzRtcRepository repository, Target target, int lineCount) {
+    Command cl = command(repository, target.workingDir, "show history", "-j", "-m", "1", target.filename);
+    StringBuilder json = new StringBuilder();
     StringStreamConsumer stderr = new StringStreamConsumer();
+    int exitCode = execute(repository, cl, line -> json.append(line).append('\n'), stderr);
+    if (UNTRACKED_BLAME_RETURN_CODES.contains(exitCode)) {
+      LOG.debug("Skipping untracked file: {}. History command exit code: {}", target.filename, exitCode);
+      return null;
+    } else if (exitCode != 0) {
+      LOG.warn("Unable to get the last change set of {}, it is not blamed: {}", target.filename, stderr.getOutput());
+      return null;
+    }
+    List<JazzRtcHistoryBlame.Changeset> history;
+    try {
+      history = JazzRtcHistoryBlame.parseHistory(json.toString());
+    } catch (IOException e) {
+      LOG.warn("Unable to parse the history of " + target.filename + ", it is not blamed", e);
+      return null;
+    }
+    if (history.isEmpty() || history.get(0).date == null) {
+      LOG.debug("No change set found for {}", target.filename);
+      return null;
+    }
+    JazzRtcHistoryBlame.Changeset last = history.get(0);
+    BlameLine line = new BlameLine().date(last.date).revision(last.uuid).author(last.author);
+    return new ArrayList<>(Collections.nCopies(lineCount, line));
+  }
+
+  /**
+   * @param repository repository the file is loaded from
+   * @param filename path relative to the working directory
+   * @param lineCount number of lines of the file
+   * @return the blame of each line, or null if the file is not tracked by Jazz RTC
+   */
+  @CheckForNull
+  List<BlameLine> annotate(JazzRtcRepository repository, File workingDirectory, String filename, int lineCount) {
+    boolean json = useJsonAnnotate(workingDirectory);
+    Command cl = json ? command(repository, workingDirectory, "annotate", "-j", filename) : command(repository, workingDirectory, "annotate", filename);
+    List<BlameLine> lines;
+    try {
+      lines = spillDir != null ? annotateToFile(repository, cl, filename, json) : annotateStreamed(repository, cl, filename, json);
+    } catch (IOException e) {
+      if (!json) {
+        throw new IllegalStateException("Unable to read the output of the jazz annotate command [" + cl + "]", e);
+      }
+      LOG.warn("Unable to parse the JSON annotate output of " + filename + ", text output will be used for the rest of the analysis", e);
+      jsonAnnotate = false;
+      return annotate(repository, workingDirectory, filename, lineCount);
+    }
+    if (lines == null) {
+      return null;
+    }
+
+    if (lines.size() == lineCount - 1) {
+      // SONARPLUGINS-3097 JazzRTC does not report blame on last empty line
+      lines.add(lines.get(lines.size() - 1));
+    }
+    return lines;
+  }
+
+  /**
+   * @return null if the file is not tracked by Jazz RTC
+   * @throws IOException if the JSON output cannot be parsed
+   */
+  @CheckForNull
+  private List<BlameLine> annotateStreamed(JazzRtcRepository repository, Command cl, String filename, boolean json) throws IOException {
+    StringStreamConsumer stderr = new StringStreamConsumer();
+    if (json) {
+      JazzRtcJsonBlameConsumer consumer = new JazzRtcJsonBlameConsumer(filename);
+      return isTracked(cl, filename, execute(repository, cl, consumer, stderr), stderr) ? consumer.getLines() : null;
+    }
+    JazzRtcBlameConsumer consumer = new JazzRtcBlameConsumer(filename);
+    return isTracked(cl, filename, execute(repository, cl, consumer, stderr), stderr) ? consumer.getLines() : null;
+  }
 
-    int exitCode = execute(cl, consumer, stderr);
+  /**
+   * The process writes its output to a file of the scanner work directory, which is parsed once the process
+   * completed. The heap then only holds the blame of the file, whatever the size of the output.
+   *
+   * @return null if the file is not tracked by Jazz RTC
+   * @throws IOException if the JSON output cannot be parsed
+   */
+  @CheckForNull
+  private List<BlameLine> annotateToFile(JazzRtcRepository repository, Command cl, String filename, boolean json) throws IOException {
+    File output = createSpillFile();
+    try {
+      StringStreamConsumer stderr = new StringStreamConsumer();
+      int exitCode = execute(repository, cl, timeout -> executor.executeToFile(cl, output, stderr, timeout));
+      if (!isTracked(cl, filename, exitCode, stderr)) {
+        return null;
+      }
+      if (json) {
+        try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(output), Charset.defaultCharset()))) {
+          return new JazzRtcJsonBlameConsumer(filename).getLines(reader);
+        }
+      }
+      return new JazzRtcMappedBlameParser(filename, Charset.defaultCharset()).parse(output);
+    } finally {
+      if (!output.delete()) {
+        // still mapped on Windows until the buffer is garbage collected
+        output.deleteOnExit();
+      }
+    }
+  }
+
+  private File createSpillFile() {
+    try {
+      Files.createDirectories(spillDir.toPath());
+      return File.createTempFile("annotate", ".out", spillDir);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to create a file for the annotate output in " + spillDir, e);
+    }
+  }
+
+  /**
+   * @return false if the file is not tracked by Jazz RTC
+   */
+  private static boolean isTracked(Command cl, String filename, int exitCode, StringStreamConsumer stderr) {
     if (UNTRACKED_BLAME_RETURN_CODES.contains(exitCode)) {
       LOG.debug("Skipping untracked file: {}. Annotate command exit code: {}", filename, exitCode);
-      return;
+      return false;
     } else if (exitCode != 0) {
       //https://www.ibm.com/support/knowledgecenter/SSYMRC_7.0.1/com.ibm.team.scm.doc/topics/r_scm_cli_retcodes.html
       LOG.error("Jazz annotate command is exiting with code {}", exitCode);
       throw new IllegalStateException("The jazz annotate command [" + cl.toString() + "] failed: " + stderr.getOutput());
     }
+    return true;
+  }
 
-    List<BlameLine> lines = consumer.getLines();
-    if (lines.size() == inputFile.lines() - 1) {
-      // SONARPLUGINS-3097 JazzRTC does not report blame on last empty line
-      lines.add(lines.get(lines.size() - 1));
+  /**
+   * The client is probed at most once per analysis.
+   */
+  private synchronized boolean useJsonAnnotate(File workingDirectory) {
+    if (jsonAnnotate == null) {
+      String format = config.annotateFormat();
+      if (JazzRtcConfiguration.AUTO_FORMAT.equals(format)) {
+        jsonAnnotate = JazzRtcCapabilities.probe(this, workingDirectory).supportsJsonAnnotate();
+      } else {
+        jsonAnnotate = JazzRtcConfiguration.JSON_FORMAT.equals(format);
+      }
     }
-    output.blameResult(inputFile, lines);
+    return jsonAnnotate;
   }
 
   public int execute(Command cl, StreamConsumer consumer, StreamConsumer stderr) {
+    return execute(JazzRtcRepository.defaults(config), cl, consumer, stderr);
+  }
+
+  int execute(JazzRtcRepository repository, Command cl, StreamConsumer consumer, StreamConsumer stderr) {
+    return execute(repository, cl, timeout -> executor.execute(cl, consumer, stderr, timeout));
+  }
+
+  /**
+   * @param execution runs the command with the given timeout
+   */
+  private int execute(JazzRtcRepository repository, Command cl, LongToIntFunction execution) {
     LOG.debug("Executing: " + cl);
 
     try {
-      return commandExecutor.execute(cl, consumer, stderr, config.commandTimeout());
+      return execution.applyAsInt(budget.timeout(repository.timeout()));
     } catch (TimeoutException t) {
       String errorMsg = "The jazz annotate command [" + cl.toString() + "] timed out";
 
-      if (config.username() != null && (config.password() != null || config.passwordFile() != null)) {
+      if (repository.hasCredentials()) {
         throw new IllegalStateException(errorMsg, t);
       } else {
         throw new IllegalStateException(errorMsg + ". Please check if you are logged in or provide username and password", t);
@@ -115,31 +694,60 @@ public class JazzRtcBlameCommand extends BlameCommand {
     }
   }
 
-  private Command createCommandLine(File workingDirectory, String filename) {
-    Command cl = Command.create("lscm");
-    // SONARSCRTC-3 and SONARSCRTC-6
-    if(system.isOsWindows()) {
-      cl.setNewShell(true);
-    }
-    cl.setDirectory(workingDirectory);
-    cl.addArgument("annotate");
-    String username = config.username();
+  /**
+   * @param subcommand lscm subcommand, the credentials are added right after it (ex: "list changesets")
+   */
+  Command command(File workingDirectory, String subcommand, String... arguments) {
+    return command(JazzRtcRepository.defaults(config), workingDirectory, subcommand, arguments);
+  }
+
+  Command command(JazzRtcRepository repository, File workingDirectory, String subcommand, String... arguments) {
+    Command cl = commandWithoutCredentials(workingDirectory, subcommand);
+    String username = repository.username();
     if (username != null) {
       cl.addArgument("-u");
       cl.addArgument(username);
     }
-    String password = config.password();
+    String password = repository.password();
     if (password != null) {
       cl.addArgument("-P");
       cl.addMaskedArgument(password);
     }
-    String passwordFile = config.passwordFile();
+    String passwordFile = repository.passwordFile();
     if (passwordFile != null) {
       cl.addArgument("--password-file");
       cl.addArgument(passwordFile);
     }
-    cl.addArgument(filename);
+    cl.addArguments(arguments);
+    return cl;
+  }
+
+  /**
+   * For the subcommands that do not connect to a repository, and reject the credentials options.
+   */
+  Command commandWithoutCredentials(File workingDirectory, String subcommand) {
+    String executable = config.lscmPath();
+    Command cl = Command.create(executable != null ? executable : JazzRtcConfiguration.LSCM_DEFAULT_PATH);
+    // SONARSCRTC-3 and SONARSCRTC-6
+    if(system.isOsWindows()) {
+      cl.setNewShell(true);
+    }
+    cl.setDirectory(workingDirectory);
+    cl.addArguments(subcommand.split(" "));
     return cl;
   }
 
+  private static class Target {
+    private final File workingDir;
+    private final String filename;
+
+    Target(File workingDir, String filename) {
+      this.workingDir = workingDir;
+      this.filename = filename;
+    }
+
+    Target(File workingDir, Path relativePath) {
+      this(workingDir, relativePath.toString().replace('\\', '/'));
+    }
+  }
 }
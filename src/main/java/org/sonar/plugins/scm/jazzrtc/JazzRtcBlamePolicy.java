@@ -0,0 +1,188 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.utils.WildcardPattern;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides, before anything is sent to Jazz RTC, how a file is blamed: annotated line by line, attributed as a whole
+ * to its last change set, or not blamed at all. Meant for huge or generated files, whose annotate is slow and of
+ * little value.
+ */
+class JazzRtcBlamePolicy {
+
+  private static final Logger LOG = Loggers.get(JazzRtcBlamePolicy.class);
+
+  /**
+   * Generated code markers are looked for in the beginning of the file only.
+   */
+  static final int MARKER_HEAD_SIZE = 8192;
+
+  enum Decision {
+    ANNOTATE, COARSE, SKIP
+  }
+
+  private final WildcardPattern[] skipPatterns;
+  private final int skipLines;
+  private final long skipSize;
+  private final WildcardPattern[] coarsePatterns;
+  private final int coarseLines;
+  private final String[] generatedMarkers;
+
+  private final AtomicInteger annotated = new AtomicInteger();
+  private final AtomicInteger coarse = new AtomicInteger();
+  private final AtomicInteger skipped = new AtomicInteger();
+
+  JazzRtcBlamePolicy(@Nullable String[] skipPatterns, int skipLines, long skipSize, @Nullable String[] coarsePatterns, int coarseLines,
+    @Nullable String[] generatedMarkers) {
+    this.skipPatterns = WildcardPattern.create(skipPatterns != null ? skipPatterns : new String[0]);
+    this.skipLines = skipLines;
+    this.skipSize = skipSize;
+    this.coarsePatterns = WildcardPattern.create(coarsePatterns != null ? coarsePatterns : new String[0]);
+    this.coarseLines = coarseLines;
+    this.generatedMarkers = generatedMarkers != null ? generatedMarkers : new String[0];
+  }
+
+  static JazzRtcBlamePolicy annotateAll() {
+    return new JazzRtcBlamePolicy(null, 0, 0, null, 0, null);
+  }
+
+  static JazzRtcBlamePolicy of(JazzRtcConfiguration config) {
+    return new JazzRtcBlamePolicy(config.blameSkipPatterns(), config.blameSkipLines(), config.blameSkipSize() * 1024,
+      config.blameCoarsePatterns(), config.blameCoarseLines(), config.generatedMarkers());
+  }
+
+  boolean isActive() {
+    return skipPatterns.length > 0 || skipLines > 0 || skipSize > 0 || coarsePatterns.length > 0 || coarseLines > 0 || generatedMarkers.length > 0;
+  }
+
+  /**
+   * @param filename path of the file relative to its sandbox root
+   */
+  Decision decide(String filename, InputFile inputFile) {
+    Decision decision = Decision.ANNOTATE;
+    String reason = null;
+    if (WildcardPattern.match(skipPatterns, filename)) {
+      decision = Decision.SKIP;
+      reason = "path matches " + JazzRtcConfiguration.SKIP_PATTERNS_PROP_KEY;
+    } else if (skipLines > 0 && inputFile.lines() > skipLines) {
+      decision = Decision.SKIP;
+      reason = inputFile.lines() + " lines";
+    } else if (skipSize > 0 && size(inputFile) > skipSize) {
+      decision = Decision.SKIP;
+      reason = "more than " + skipSize + " bytes";
+    } else if (WildcardPattern.match(coarsePatterns, filename)) {
+      decision = Decision.COARSE;
+      reason = "path matches " + JazzRtcConfiguration.COARSE_PATTERNS_PROP_KEY;
+    } else if (coarseLines > 0 && inputFile.lines() > coarseLines) {
+      decision = Decision.COARSE;
+      reason = inputFile.lines() + " lines";
+    } else {
+      String marker = generatedMarker(inputFile);
+      if (marker != null) {
+        decision = Decision.COARSE;
+        reason = "generated code marker '" + marker + "'";
+      }
+    }
+
+    switch (decision) {
+      case SKIP:
+        skipped.incrementAndGet();
+        LOG.debug("Blame of {} skipped: {}", filename, reason);
+        break;
+      case COARSE:
+        coarse.incrementAndGet();
+        LOG.debug("{} attributed to its last change set: {}", filename, reason);
+        break;
+      default:
+        annotated.incrementAndGet();
+    }
+    return decision;
+  }
+
+  void logSummary() {
+    if (isActive()) {
+      LOG.info("Blame policy: {} files annotated, {} attributed to their last change set, {} skipped", annotated.get(), coarse.get(), skipped.get());
+    }
+  }
+
+  int annotated() {
+    return annotated.get();
+  }
+
+  int coarse() {
+    return coarse.get();
+  }
+
+  int skipped() {
+    return skipped.get();
+  }
+
+  private static long size(InputFile inputFile) {
+    try {
+      return "file".equals(inputFile.uri().getScheme()) ? Files.size(Paths.get(inputFile.uri())) : -1;
+    } catch (IOException e) {
+      LOG.debug("Unable to get the size of " + inputFile, e);
+      return -1;
+    }
+  }
+
+  @CheckForNull
+  private String generatedMarker(InputFile inputFile) {
+    if (generatedMarkers.length == 0) {
+      return null;
+    }
+    String head;
+    Charset charset = inputFile.charset() != null ? inputFile.charset() : StandardCharsets.UTF_8;
+    try (Reader reader = new InputStreamReader(inputFile.inputStream(), charset)) {
+      char[] buffer = new char[MARKER_HEAD_SIZE];
+      int length = 0;
+      int read;
+      while (length < buffer.length && (read = reader.read(buffer, length, buffer.length - length)) != -1) {
+        length += read;
+      }
+      head = new String(buffer, 0, length);
+    } catch (IOException e) {
+      LOG.debug("Unable to read " + inputFile, e);
+      return null;
+    }
+    for (String marker : generatedMarkers) {
+      if (!marker.isEmpty() && head.contains(marker)) {
+        return marker;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Deterministic partitioning of the files to blame across several worker processes, and exchange of
+ * their partial results through {@link JazzRtcBlameStore} files. The results are stored with the digest of the
+ * content they were computed on, so that results of an earlier run are never taken for the current content.
+ */
+class JazzRtcBlameShards {
+
+  private static final Logger LOG = Loggers.get(JazzRtcBlameShards.class);
+
+  private final int count;
+  private final File dir;
+
+  JazzRtcBlameShards(int count, File dir) {
+    this.count = count;
+    this.dir = dir;
+  }
+
+  static JazzRtcBlameShards of(JazzRtcConfiguration config) {
+    String dir = config.shardDir();
+    if (dir == null) {
+      throw new IllegalStateException("Property " + JazzRtcConfiguration.SHARD_DIR_PROP_KEY + " is required when "
+        + JazzRtcConfiguration.SHARD_COUNT_PROP_KEY + " is greater than 1");
+    }
+    return new JazzRtcBlameShards(config.shardCount(), new File(dir));
+  }
+
+  int count() {
+    return count;
+  }
+
+  /**
+   * String#hashCode is specified by the JLS, so every worker computes the same partition for a given path.
+   */
+  int shardOf(String filename) {
+    return Math.floorMod(filename.replace('\\', '/').hashCode(), count);
+  }
+
+  File file(int index) {
+    return new File(dir, "shard-" + index + "-of-" + count + ".blame");
+  }
+
+  void write(int index, Map<String, JazzRtcBlameStore.Entry> results) {
+    File file = file(index);
+    try {
+      JazzRtcBlameStore.writeEntries(file, results);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to write blame shard " + file, e);
+    }
+    LOG.info("Wrote blame results of {} files to {}", results.size(), file);
+  }
+
+  /**
+   * Results of all the shards found in the directory. Missing or unreadable shards are only logged, the
+   * files they should have covered are then blamed by the caller.
+   */
+  Map<String, JazzRtcBlameStore.Entry> readAll() {
+    Map<String, JazzRtcBlameStore.Entry> merged = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      File file = file(i);
+      if (!file.isFile()) {
+        LOG.warn("Blame shard {} not found, its files will be blamed by this analysis", file);
+        continue;
+      }
+      try {
+        merged.putAll(JazzRtcBlameStore.read(file));
+      } catch (IOException e) {
+        LOG.warn("Unable to read blame shard " + file + ", its files will be blamed by this analysis", e);
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Once merged, the shards are not to be used by the next analysis.
+   */
+  void deleteAll() {
+    for (int i = 0; i < count; i++) {
+      File file = file(i);
+      if (file.exists() && !file.delete()) {
+        LOG.warn("Unable to delete blame shard {}", file);
+      }
+    }
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.batch.scm.BlameLine;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Portable, JVM independent file format for blame results, keyed by the path relative to the sandbox.
+ */
+public final class JazzRtcBlameStore {
+
+  private static final int MAGIC = 0x4A524243;
+  private static final int VERSION = 3;
+
+  private JazzRtcBlameStore() {
+    // only static methods
+  }
+
+  /**
+   * Blame of a file, with the digest of the content it was computed on and the hash of each of its lines when known.
+   */
+  public static class Entry {
+    private final List<BlameLine> lines;
+    private final long[] lineHashes;
+    private final byte[] digest;
+    private final boolean patched;
+
+    public Entry(List<BlameLine> lines, @Nullable long[] lineHashes, @Nullable byte[] digest, boolean patched) {
+      this.lines = lines;
+      this.lineHashes = lineHashes;
+      this.digest = digest;
+      this.patched = patched;
+    }
+
+    public List<BlameLine> lines() {
+      return lines;
+    }
+
+    @CheckForNull
+    public long[] lineHashes() {
+      return lineHashes;
+    }
+
+    @CheckForNull
+    public byte[] digest() {
+      return digest;
+    }
+
+    /**
+     * @return true if some lines were attributed locally instead of by Jazz RTC
+     */
+    public boolean isPatched() {
+      return patched;
+    }
+  }
+
+  /**
+   * Writes the results to a temporary file first and then moves it in place, so that a reader never sees
+   * a partially written file.
+   */
+  public static void writeEntries(File file, Map<String, Entry> results) throws IOException {
+    File parent = file.getAbsoluteFile().getParentFile();
+    Files.createDirectories(parent.toPath());
+    File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(results.size());
+      for (Map.Entry<String, Entry> entry : results.entrySet()) {
+        out.writeUTF(entry.getKey());
+        Entry value = entry.getValue();
+        out.writeBoolean(value.patched);
+        long[] lineHashes = value.lineHashes;
+        out.writeInt(lineHashes != null ? lineHashes.length : -1);
+        if (lineHashes != null) {
+          for (long hash : lineHashes) {
+            out.writeLong(hash);
+          }
+        }
+        byte[] digest = value.digest;
+        out.writeInt(digest != null ? digest.length : -1);
+        if (digest != null) {
+          out.write(digest);
+        }
+        List<BlameLine> lines = value.lines;
+        out.writeInt(lines.size());
+        for (BlameLine line : lines) {
+          writeNullable(out, line.revision());
+          writeNullable(out, line.author());
+          Date date = line.date();
+          out.writeBoolean(date != null);
+          if (date != null) {
+            out.writeLong(date.getTime());
+          }
+        }
+      }
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  public static Map<String, Entry> read(File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a blame results file: " + file);
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported blame results version " + version + " in " + file);
+      }
+      // authors and revisions repeat a lot, share the instances
+      Map<String, String> strings = new HashMap<>();
+      int count = in.readInt();
+      Map<String, Entry> results = new LinkedHashMap<>(count * 2);
+      for (int i = 0; i < count; i++) {
+        String path = in.readUTF();
+        boolean patched = in.readBoolean();
+        int hashCount = in.readInt();
+        long[] lineHashes = null;
+        if (hashCount >= 0) {
+          lineHashes = new long[hashCount];
+          for (int h = 0; h < hashCount; h++) {
+            lineHashes[h] = in.readLong();
+          }
+        }
+        int digestLength = in.readInt();
+        byte[] digest = null;
+        if (digestLength >= 0) {
+          digest = new byte[digestLength];
+          in.readFully(digest);
+        }
+        int size = in.readInt();
+        List<BlameLine> lines = new ArrayList<>(size);
+        for (int l = 0; l < size; l++) {
+          String revision = readNullable(in, strings);
+          String author = readNullable(in, strings);
+          Date date = in.readBoolean() ? new Date(in.readLong()) : null;
+          lines.add(new BlameLine().date(date).revision(revision).author(author));
+        }
+        results.put(path, new Entry(lines, lineHashes, digest, patched));
+      }
+      return results;
+    }
+  }
+
+  private static void writeNullable(DataOutputStream out, @Nullable String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  @CheckForNull
+  private static String readNullable(DataInputStream in, Map<String, String> strings) throws IOException {
+    if (!in.readBoolean()) {
+      return null;
+    }
+    String value = in.readUTF();
+    String shared = strings.putIfAbsent(value, value);
+    return shared != null ? shared : value;
+  }
+}
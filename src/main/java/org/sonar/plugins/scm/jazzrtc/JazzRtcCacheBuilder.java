@@ -0,0 +1,253 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fills the blame cache of a sandbox outside of any analysis, for example in a nightly job, so that the next analyses
+ * only have to blame what changed since. Every file of the sandbox is annotated in parallel, except the ones ignored by
+ * the <code>.jazzignore</code> files and the ones the cache already holds for the same content.
+ *
+ * <pre>
+ * java -cp sonar-plugin-api.jar:sonar-scm-jazzrtc-plugin.jar org.sonar.plugins.scm.jazzrtc.JazzRtcCacheBuilder \
+ *   &lt;sandbox directory&gt; sonar.jazzrtc.cache.dir=&lt;directory&gt; [sonar.jazzrtc.username=... ...]
+ * </pre>
+ */
+public class JazzRtcCacheBuilder {
+
+  private static final Logger LOG = Loggers.get(JazzRtcCacheBuilder.class);
+
+  public static final String THREADS_PROP_KEY = "sonar.jazzrtc.builder.threads";
+  public static final String ENCODING_PROP_KEY = "sonar.sourceEncoding";
+
+  private static final String BOM = "\uFEFF";
+
+  private final JazzRtcBlameCommand command;
+  private final JazzRtcConfiguration config;
+  private final JazzRtcSandboxIndex sandboxIndex;
+  private final Charset charset;
+  private final int threads;
+
+  private final AtomicInteger annotated = new AtomicInteger();
+  private final AtomicInteger untracked = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+
+  JazzRtcCacheBuilder(JazzRtcBlameCommand command, JazzRtcConfiguration config, JazzRtcSandboxIndex sandboxIndex, Charset charset, int threads) {
+    this.command = command;
+    this.config = config;
+    this.sandboxIndex = sandboxIndex;
+    this.charset = charset;
+    this.threads = threads;
+  }
+
+  public static void main(String[] args) {
+    System.exit(run(args));
+  }
+
+  /**
+   * @return the exit code: 0 if every file was blamed or is not tracked, 1 if some could not be blamed, 2 on usage error
+   */
+  static int run(String[] args) {
+    if (args.length == 0) {
+      LOG.error("Usage: JazzRtcCacheBuilder <sandbox directory> [property=value...]");
+      return 2;
+    }
+    Map<String, String> properties = new HashMap<>();
+    for (int i = 1; i < args.length; i++) {
+      int separator = args[i].indexOf('=');
+      if (separator <= 0) {
+        LOG.error("Expecting property=value but was: {}", args[i]);
+        return 2;
+      }
+      properties.put(args[i].substring(0, separator), args[i].substring(separator + 1));
+    }
+    JazzRtcConfiguration config = new JazzRtcConfiguration(new PropertiesConfiguration(properties));
+    if (config.cacheDir() == null) {
+      LOG.error("Property {} is required", JazzRtcConfiguration.CACHE_DIR_PROP_KEY);
+      return 2;
+    }
+    Charset charset = Optional.ofNullable(properties.get(ENCODING_PROP_KEY)).map(Charset::forName).orElse(Charset.defaultCharset());
+    int threads = Optional.ofNullable(properties.get(THREADS_PROP_KEY)).map(Integer::parseInt).orElse(Runtime.getRuntime().availableProcessors());
+    JazzRtcSandboxIndex sandboxIndex = new JazzRtcSandboxIndex();
+    JazzRtcBlameCommand command = new JazzRtcBlameCommand(config, sandboxIndex);
+    return new JazzRtcCacheBuilder(command, config, sandboxIndex, charset, threads).build(Paths.get(args[0])) ? 0 : 1;
+  }
+
+  /**
+   * @return true if every file was blamed or is not tracked
+   */
+  boolean build(Path dir) {
+    Path sandboxRoot = sandboxIndex.sandboxRoot(dir);
+    if (sandboxRoot == null) {
+      throw new IllegalStateException("Not in a Jazz RTC sandbox: " + dir);
+    }
+    List<Path> files = files(dir.toAbsolutePath().normalize(), new JazzRtcIgnoreCommand(sandboxIndex));
+    JazzRtcRepositories repositories = JazzRtcRepositories.of(command, config);
+    JazzRtcBlameCache cache = JazzRtcBlameCache.load(new File(config.cacheDir()), config.uncommittedAuthor(), new Date(System2.INSTANCE.now()));
+    LOG.info("Blaming {} files of sandbox {} with {} threads", files.size(), sandboxRoot, threads);
+
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+    try {
+      List<Future<?>> tasks = new ArrayList<>(files.size());
+      for (Path file : files) {
+        tasks.add(pool.submit(() -> blame(cache, repositories, sandboxRoot, file)));
+      }
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while blaming " + sandboxRoot, e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Unable to blame " + sandboxRoot, e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+    cache.evictMissing(Collections.singleton(sandboxRoot.toFile()));
+    cache.save();
+    LOG.info("{} files annotated, {} not tracked, {} failed", annotated.get(), untracked.get(), failed.get());
+    return failed.get() == 0;
+  }
+
+  private void blame(JazzRtcBlameCache cache, JazzRtcRepositories repositories, Path sandboxRoot, Path file) {
+    String filename = sandboxRoot.relativize(file).toString().replace('\\', '/');
+    JazzRtcBlameCache.Content content;
+    try {
+      content = JazzRtcBlameCache.content(withoutBom(new String(Files.readAllBytes(file), charset)));
+    } catch (IOException e) {
+      LOG.warn("Unable to read " + file, e);
+      failed.incrementAndGet();
+      return;
+    }
+    if (cache.get(filename, content, false) != null) {
+      return;
+    }
+    try {
+      JazzRtcRepository repository = repositories.route(sandboxRoot, sandboxIndex.componentRoot(file));
+      List<BlameLine> lines = command.annotate(repository, sandboxRoot.toFile(), filename, content.lineHashes.length);
+      if (lines == null) {
+        untracked.incrementAndGet();
+      } else {
+        cache.put(filename, lines);
+        annotated.incrementAndGet();
+      }
+    } catch (IllegalStateException e) {
+      LOG.warn("Unable to blame " + filename, e);
+      failed.incrementAndGet();
+    }
+  }
+
+  /**
+   * The scanner drops the byte order mark when reading the files, the digest must be the one of the same content.
+   */
+  static String withoutBom(String text) {
+    return text.startsWith(BOM) ? text.substring(BOM.length()) : text;
+  }
+
+  /**
+   * @return the files of the directory, except the ones ignored by the <code>.jazzignore</code> files
+   */
+  private static List<Path> files(Path dir, JazzRtcIgnoreCommand ignoreCommand) {
+    List<Path> files = new ArrayList<>();
+    ignoreCommand.init(dir);
+    try {
+      Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attrs) {
+          if (JazzRtcSandboxIndex.METADATA_DIR.equals(String.valueOf(directory.getFileName()))
+            || (!directory.equals(dir) && ignoreCommand.isIgnored(directory))) {
+            return FileVisitResult.SKIP_SUBTREE;
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+          if (attrs.isRegularFile() && !ignoreCommand.isIgnored(file)) {
+            files.add(file);
+          }
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to list the files of " + dir, e);
+    } finally {
+      ignoreCommand.clean();
+    }
+    return files;
+  }
+
+  /**
+   * Properties of the command line, multiple values being comma separated like in the scanner.
+   */
+  static class PropertiesConfiguration implements Configuration {
+
+    private final Map<String, String> properties;
+
+    PropertiesConfiguration(Map<String, String> properties) {
+      this.properties = properties;
+    }
+
+    @Override
+    public Optional<String> get(String key) {
+      return Optional.ofNullable(properties.get(key)).map(String::trim).filter(value -> !value.isEmpty());
+    }
+
+    @Override
+    public boolean hasKey(String key) {
+      return properties.containsKey(key);
+    }
+
+    @Override
+    public String[] getStringArray(String key) {
+      return get(key)
+        .map(value -> Arrays.stream(value.split(",")).map(String::trim).filter(item -> !item.isEmpty()).toArray(String[]::new))
+        .orElse(new String[0]);
+    }
+  }
+}
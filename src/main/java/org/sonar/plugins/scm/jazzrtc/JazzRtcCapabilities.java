@@ -0,0 +1,109 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.utils.command.StringStreamConsumer;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Features of the installed lscm client, deduced from the output of <code>lscm version</code>.
+ */
+class JazzRtcCapabilities {
+
+  private static final Logger LOG = Loggers.get(JazzRtcCapabilities.class);
+
+  // com.ibm.team.filesystem.cli.client, version 6.0.2.v20160513_0118
+  private static final Pattern CLIENT_VERSION = Pattern.compile(".*filesystem\\.cli\\.client.*?version\\s+(\\d+)\\.(\\d+).*");
+  private static final Pattern ANY_VERSION = Pattern.compile(".*?version\\s+(\\d+)\\.(\\d+).*", Pattern.CASE_INSENSITIVE);
+  private static final int JSON_ANNOTATE_MAJOR_VERSION = 6;
+
+  static final JazzRtcCapabilities UNKNOWN = new JazzRtcCapabilities(null, 0);
+
+  private final String version;
+  private final int major;
+
+  JazzRtcCapabilities(@Nullable String version, int major) {
+    this.version = version;
+    this.major = major;
+  }
+
+  /**
+   * @return the version of the client, or null if it could not be determined
+   */
+  @CheckForNull
+  String version() {
+    return version;
+  }
+
+  boolean supportsJsonAnnotate() {
+    return major >= JSON_ANNOTATE_MAJOR_VERSION;
+  }
+
+  /**
+   * Never fails: a client that cannot tell its version is assumed to support nothing but the text output.
+   */
+  static JazzRtcCapabilities probe(JazzRtcBlameCommand lscm, File workingDirectory) {
+    List<String> output = new ArrayList<>();
+    StringStreamConsumer stderr = new StringStreamConsumer();
+    JazzRtcCapabilities capabilities = UNKNOWN;
+    try {
+      int exitCode = lscm.execute(lscm.commandWithoutCredentials(workingDirectory, "version"), output::add, stderr);
+      if (exitCode == 0) {
+        capabilities = parse(output);
+      } else {
+        LOG.debug("lscm version is exiting with code {}: {}", exitCode, stderr.getOutput());
+      }
+    } catch (IllegalStateException e) {
+      LOG.debug("Unable to get the version of lscm", e);
+    }
+    LOG.info("Jazz RTC client version {}, {} annotate output will be used", capabilities.version != null ? capabilities.version : "unknown",
+      capabilities.supportsJsonAnnotate() ? "JSON" : "text");
+    return capabilities;
+  }
+
+  static JazzRtcCapabilities parse(List<String> versionOutput) {
+    JazzRtcCapabilities fallback = UNKNOWN;
+    for (String line : versionOutput) {
+      Matcher client = CLIENT_VERSION.matcher(line);
+      if (client.matches()) {
+        return of(client);
+      }
+      Matcher any = ANY_VERSION.matcher(line);
+      if (fallback == UNKNOWN && any.matches()) {
+        fallback = of(any);
+      }
+    }
+    return fallback;
+  }
+
+  private static JazzRtcCapabilities of(Matcher matcher) {
+    return new JazzRtcCapabilities(matcher.group(1) + "." + matcher.group(2), Integer.parseInt(matcher.group(1)));
+  }
+}
@@ -40,6 +40,50 @@ public class JazzRtcConfiguration {
   public static final String USER_PROP_KEY = "sonar.jazzrtc.username";
   public static final String PASSWRD_PROP_KEY = "sonar.jazzrtc.password.secured";
   public static final String PASSWRD_FILE_PROP_KEY = "sonar.jazzrtc.password.file";
+  public static final String SHARD_COUNT_PROP_KEY = "sonar.jazzrtc.blame.shard.count";
+  public static final String SHARD_INDEX_PROP_KEY = "sonar.jazzrtc.blame.shard.index";
+  public static final String SHARD_DIR_PROP_KEY = "sonar.jazzrtc.blame.shard.dir";
+  public static final String RECORD_FILE_PROP_KEY = "sonar.jazzrtc.record.file";
+  public static final String REPLAY_FILE_PROP_KEY = "sonar.jazzrtc.replay.file";
+  public static final String REPLAY_TIME_SCALE_PROP_KEY = "sonar.jazzrtc.replay.timeScale";
+  public static final double REPLAY_DEFAULT_TIME_SCALE = 1.0;
+  public static final String ENGINE_PROP_KEY = "sonar.jazzrtc.blame.engine";
+  public static final String ANNOTATE_ENGINE = "annotate";
+  public static final String HISTORY_ENGINE = "history";
+  public static final String HISTORY_MAX_PROP_KEY = "sonar.jazzrtc.blame.history.max";
+  public static final int HISTORY_DEFAULT_MAX = 200;
+  public static final String CACHE_DIR_PROP_KEY = "sonar.jazzrtc.cache.dir";
+  public static final String UNCOMMITTED_AUTHOR_PROP_KEY = "sonar.jazzrtc.blame.uncommitted.author";
+  public static final String UNCOMMITTED_DEFAULT_AUTHOR = "uncommitted";
+  public static final String ANNOTATE_FORMAT_PROP_KEY = "sonar.jazzrtc.annotate.format";
+  public static final String AUTO_FORMAT = "auto";
+  public static final String TEXT_FORMAT = "text";
+  public static final String JSON_FORMAT = "json";
+  public static final String BUDGET_PROP_KEY = "sonar.jazzrtc.blame.budget";
+  public static final String LSCM_PATH_PROP_KEY = "sonar.jazzrtc.lscm.path";
+  public static final String LSCM_DEFAULT_PATH = "lscm";
+  public static final String AUTHOR_MAPPING_PROP_KEY = "sonar.jazzrtc.author.mapping";
+  public static final String AUTHOR_NAME = "name";
+  public static final String AUTHOR_ID = "id";
+  public static final String AUTHOR_EMAIL = "email";
+  public static final String AUTHOR_CACHE_TTL_PROP_KEY = "sonar.jazzrtc.author.cache.ttl";
+  public static final long AUTHOR_CACHE_DEFAULT_TTL = 24;
+  public static final String REPOSITORIES_PROP_KEY = "sonar.jazzrtc.repositories";
+  public static final String REPOSITORY_URL_SUFFIX = "url";
+  public static final String REPOSITORY_COMPONENTS_SUFFIX = "components";
+  public static final String REPOSITORY_USER_SUFFIX = "username";
+  public static final String REPOSITORY_PASSWRD_SUFFIX = "password.secured";
+  public static final String REPOSITORY_PASSWRD_FILE_SUFFIX = "password.file";
+  public static final String REPOSITORY_TIMEOUT_SUFFIX = "cmd.timeout";
+  public static final String REPOSITORY_THREADS_SUFFIX = "threads";
+  public static final String SKIP_PATTERNS_PROP_KEY = "sonar.jazzrtc.blame.skip.patterns";
+  public static final String SKIP_LINES_PROP_KEY = "sonar.jazzrtc.blame.skip.lines";
+  public static final String SKIP_SIZE_PROP_KEY = "sonar.jazzrtc.blame.skip.size";
+  public static final String COARSE_PATTERNS_PROP_KEY = "sonar.jazzrtc.blame.coarse.patterns";
+  public static final String COARSE_LINES_PROP_KEY = "sonar.jazzrtc.blame.coarse.lines";
+  public static final String GENERATED_MARKERS_PROP_KEY = "sonar.jazzrtc.blame.generated.markers";
+  public static final String ANNOTATE_SPILL_PROP_KEY = "sonar.jazzrtc.annotate.spill";
+  public static final String TERMINATE_ORPHANS_PROP_KEY = "sonar.jazzrtc.orphans.terminate";
 
   private final Configuration settings;
 
@@ -85,6 +129,257 @@ public class JazzRtcConfiguration {
         .category(CoreProperties.CATEGORY_SCM)
         .subCategory(CATEGORY_JAZZ)
         .index(2)
+        .build(),
+      PropertyDefinition.builder(SHARD_COUNT_PROP_KEY)
+        .name("Blame Shard Count")
+        .description("Number of worker processes the files to blame are partitioned across. Values lower than 2 disable sharding")
+        .type(PropertyType.INTEGER)
+        .defaultValue("1")
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(3)
+        .build(),
+      PropertyDefinition.builder(SHARD_INDEX_PROP_KEY)
+        .name("Blame Shard Index")
+        .description("Zero-based shard handled by this worker process. When not set, the analysis merges the results written by the workers")
+        .type(PropertyType.INTEGER)
+        .hidden()
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(4)
+        .build(),
+      PropertyDefinition.builder(SHARD_DIR_PROP_KEY)
+        .name("Blame Shard Directory")
+        .description("Directory shared by the worker processes and the analysis to exchange partial blame results")
+        .type(PropertyType.STRING)
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(5)
+        .build(),
+      PropertyDefinition.builder(RECORD_FILE_PROP_KEY)
+        .name("Record File")
+        .description("When set, the output, exit code and latency of every lscm command are recorded to this file")
+        .type(PropertyType.STRING)
+        .hidden()
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(6)
+        .build(),
+      PropertyDefinition.builder(REPLAY_FILE_PROP_KEY)
+        .name("Replay File")
+        .description("When set, lscm is not executed and the commands are served from this recording")
+        .type(PropertyType.STRING)
+        .hidden()
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(7)
+        .build(),
+      PropertyDefinition.builder(REPLAY_TIME_SCALE_PROP_KEY)
+        .name("Replay Time Scale")
+        .description("Factor applied to the recorded latencies when replaying. 0 replays without any delay")
+        .type(PropertyType.FLOAT)
+        .defaultValue("1.0")
+        .hidden()
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(8)
+        .build(),
+      PropertyDefinition.builder(ENGINE_PROP_KEY)
+        .name("Blame Engine")
+        .description("'annotate' runs lscm annotate for every file. 'history' fetches the history of each component once and computes "
+          + "the blame locally, files whose history is not complete are still annotated")
+        .type(PropertyType.SINGLE_SELECT_LIST)
+        .options(ANNOTATE_ENGINE, HISTORY_ENGINE)
+        .defaultValue(ANNOTATE_ENGINE)
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(9)
+        .build(),
+      PropertyDefinition.builder(HISTORY_MAX_PROP_KEY)
+        .name("Blame History Depth")
+        .description("Maximum number of change sets fetched per component by the 'history' blame engine")
+        .type(PropertyType.INTEGER)
+        .defaultValue(String.valueOf(HISTORY_DEFAULT_MAX))
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(10)
+        .build(),
+      PropertyDefinition.builder(CACHE_DIR_PROP_KEY)
+        .name("Blame Cache Directory")
+        .description("Directory where blame results are kept between analyses. Unchanged files are not annotated again, and files "
+          + "changed by a few lines get their previous blame patched locally. No cache when not set")
+        .type(PropertyType.STRING)
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(11)
+        .build(),
+      PropertyDefinition.builder(UNCOMMITTED_AUTHOR_PROP_KEY)
+        .name("Uncommitted Lines Author")
+        .description("Author of the lines changed since the cached blame of a file, when it is patched instead of annotated")
+        .type(PropertyType.STRING)
+        .defaultValue(UNCOMMITTED_DEFAULT_AUTHOR)
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(12)
+        .build(),
+      PropertyDefinition.builder(ANNOTATE_FORMAT_PROP_KEY)
+        .name("Annotate Output Format")
+        .description("'auto' checks the version of lscm once per analysis and requests JSON annotate output when the client supports it. "
+          + "'text' always parses the human readable output, 'json' always requests JSON output")
+        .type(PropertyType.SINGLE_SELECT_LIST)
+        .options(AUTO_FORMAT, TEXT_FORMAT, JSON_FORMAT)
+        .defaultValue(AUTO_FORMAT)
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(13)
+        .build(),
+      PropertyDefinition.builder(BUDGET_PROP_KEY)
+        .name("Blame Time Budget")
+        .description("Wall-clock time in milliseconds after which no new file is annotated. The files left are annotated first by "
+          + "the next analysis when the blame cache directory is set. 0 means no limit")
+        .type(PropertyType.INTEGER)
+        .defaultValue("0")
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(14)
+        .build(),
+      PropertyDefinition.builder(LSCM_PATH_PROP_KEY)
+        .name("lscm Executable")
+        .description("Path of the Jazz RTC command line client. By default lscm is looked up in the PATH")
+        .type(PropertyType.STRING)
+        .defaultValue(LSCM_DEFAULT_PATH)
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(15)
+        .build(),
+      PropertyDefinition.builder(AUTHOR_MAPPING_PROP_KEY)
+        .name("Author Mapping")
+        .description("'name' reports the display name of the authors. 'id' and 'email' list the contributors of the repository "
+          + "once per analysis and report their user id or email address, which SonarQube can match to its users")
+        .type(PropertyType.SINGLE_SELECT_LIST)
+        .options(AUTHOR_NAME, AUTHOR_ID, AUTHOR_EMAIL)
+        .defaultValue(AUTHOR_NAME)
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(16)
+        .build(),
+      PropertyDefinition.builder(AUTHOR_CACHE_TTL_PROP_KEY)
+        .name("Author Mapping Expiry")
+        .description("Hours during which the contributors listed by an analysis are reused from the blame cache directory")
+        .type(PropertyType.INTEGER)
+        .defaultValue(String.valueOf(AUTHOR_CACHE_DEFAULT_TTL))
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(17)
+        .build(),
+      PropertyDefinition.builder(REPOSITORIES_PROP_KEY)
+        .name("Repositories")
+        .description("Keys of the repositories the components are loaded from, when they need their own credentials, timeout or "
+          + "concurrent annotates. Each is configured with sonar.jazzrtc.repository.<key>.url, .components, .username, "
+          + ".password.secured, .password.file, .cmd.timeout and .threads")
+        .type(PropertyType.STRING)
+        .multiValues(true)
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(18)
+        .build(),
+      PropertyDefinition.builder(SKIP_PATTERNS_PROP_KEY)
+        .name("Files Not Blamed")
+        .description("Patterns of the paths, relative to the sandbox root, of the files that are not blamed at all (ex: **/generated/**)")
+        .type(PropertyType.STRING)
+        .multiValues(true)
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(19)
+        .build(),
+      PropertyDefinition.builder(SKIP_LINES_PROP_KEY)
+        .name("Maximum Lines Blamed")
+        .description("Files with more lines are not blamed at all. 0 means no limit")
+        .type(PropertyType.INTEGER)
+        .defaultValue("0")
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(20)
+        .build(),
+      PropertyDefinition.builder(SKIP_SIZE_PROP_KEY)
+        .name("Maximum Size Blamed")
+        .description("Files bigger than this size in kilobytes are not blamed at all. 0 means no limit")
+        .type(PropertyType.INTEGER)
+        .defaultValue("0")
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(21)
+        .build(),
+      PropertyDefinition.builder(COARSE_PATTERNS_PROP_KEY)
+        .name("Files Blamed As A Whole")
+        .description("Patterns of the paths, relative to the sandbox root, of the files whose lines are all attributed to the last "
+          + "change set of the file instead of being annotated")
+        .type(PropertyType.STRING)
+        .multiValues(true)
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(22)
+        .build(),
+      PropertyDefinition.builder(COARSE_LINES_PROP_KEY)
+        .name("Maximum Lines Annotated")
+        .description("Files with more lines have all their lines attributed to their last change set instead of being annotated. "
+          + "0 means no limit")
+        .type(PropertyType.INTEGER)
+        .defaultValue("0")
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(23)
+        .build(),
+      PropertyDefinition.builder(GENERATED_MARKERS_PROP_KEY)
+        .name("Generated Code Markers")
+        .description("Files containing one of these texts in their first " + JazzRtcBlamePolicy.MARKER_HEAD_SIZE + " characters are "
+          + "considered generated, and have all their lines attributed to their last change set (ex: @Generated, DO NOT EDIT)")
+        .type(PropertyType.STRING)
+        .multiValues(true)
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(24)
+        .build(),
+      PropertyDefinition.builder(ANNOTATE_SPILL_PROP_KEY)
+        .name("Annotate Output To Disk")
+        .description("When enabled, the output of each annotate is written to a file of the scanner work directory and parsed once "
+          + "lscm completed, instead of being read line by line while it runs. The memory used no longer grows with the size of "
+          + "the output")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue("false")
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(25)
+        .build(),
+      PropertyDefinition.builder(TERMINATE_ORPHANS_PROP_KEY)
+        .name("Stop Orphan lscm Processes")
+        .description("lscm processes left running by an earlier analysis which did not complete are always reported. When "
+          + "enabled, they are also stopped. Only supported on systems exposing processes in /proc")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue("false")
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_JAZZ)
+        .index(26)
         .build());
   }
 
@@ -107,4 +402,119 @@ public class JazzRtcConfiguration {
     return settings.getLong(CMD_TIMEOUT_PROP_KEY).filter((Long t) -> t != 0L).orElse(CMD_DEFAULT_TIMEOUT);
   }
 
+  public int shardCount() {
+    return settings.getInt(SHARD_COUNT_PROP_KEY).orElse(1);
+  }
+
+  @CheckForNull
+  public Integer shardIndex() {
+    return settings.getInt(SHARD_INDEX_PROP_KEY).orElse(null);
+  }
+
+  @CheckForNull
+  public String shardDir() {
+    return settings.get(SHARD_DIR_PROP_KEY).orElse(null);
+  }
+
+  @CheckForNull
+  public String recordFile() {
+    return settings.get(RECORD_FILE_PROP_KEY).orElse(null);
+  }
+
+  @CheckForNull
+  public String replayFile() {
+    return settings.get(REPLAY_FILE_PROP_KEY).orElse(null);
+  }
+
+  public double replayTimeScale() {
+    return settings.getDouble(REPLAY_TIME_SCALE_PROP_KEY).orElse(REPLAY_DEFAULT_TIME_SCALE);
+  }
+
+  public String blameEngine() {
+    return settings.get(ENGINE_PROP_KEY).orElse(ANNOTATE_ENGINE);
+  }
+
+  @CheckForNull
+  public String cacheDir() {
+    return settings.get(CACHE_DIR_PROP_KEY).orElse(null);
+  }
+
+  public String uncommittedAuthor() {
+    return settings.get(UNCOMMITTED_AUTHOR_PROP_KEY).orElse(UNCOMMITTED_DEFAULT_AUTHOR);
+  }
+
+  public int historyMaxChangesets() {
+    return settings.getInt(HISTORY_MAX_PROP_KEY).filter((Integer max) -> max > 0).orElse(HISTORY_DEFAULT_MAX);
+  }
+
+  public long blameBudget() {
+    return settings.getLong(BUDGET_PROP_KEY).filter((Long budget) -> budget > 0).orElse(0L);
+  }
+
+  public String lscmPath() {
+    return settings.get(LSCM_PATH_PROP_KEY).orElse(LSCM_DEFAULT_PATH);
+  }
+
+  public String authorMapping() {
+    return settings.get(AUTHOR_MAPPING_PROP_KEY).orElse(AUTHOR_NAME);
+  }
+
+  public long authorCacheTtl() {
+    return settings.getLong(AUTHOR_CACHE_TTL_PROP_KEY).filter((Long ttl) -> ttl >= 0).orElse(AUTHOR_CACHE_DEFAULT_TTL);
+  }
+
+  public String[] repositories() {
+    return stringArray(REPOSITORIES_PROP_KEY);
+  }
+
+  @CheckForNull
+  public String repositoryProperty(String repository, String suffix) {
+    return settings.get(repositoryPropertyKey(repository, suffix)).orElse(null);
+  }
+
+  static String repositoryPropertyKey(String repository, String suffix) {
+    return "sonar.jazzrtc.repository." + repository + "." + suffix;
+  }
+
+  public String[] blameSkipPatterns() {
+    return stringArray(SKIP_PATTERNS_PROP_KEY);
+  }
+
+  public int blameSkipLines() {
+    return settings.getInt(SKIP_LINES_PROP_KEY).filter((Integer lines) -> lines > 0).orElse(0);
+  }
+
+  public long blameSkipSize() {
+    return settings.getLong(SKIP_SIZE_PROP_KEY).filter((Long size) -> size > 0).orElse(0L);
+  }
+
+  public String[] blameCoarsePatterns() {
+    return stringArray(COARSE_PATTERNS_PROP_KEY);
+  }
+
+  public int blameCoarseLines() {
+    return settings.getInt(COARSE_LINES_PROP_KEY).filter((Integer lines) -> lines > 0).orElse(0);
+  }
+
+  public String[] generatedMarkers() {
+    return stringArray(GENERATED_MARKERS_PROP_KEY);
+  }
+
+  private String[] stringArray(String key) {
+    String[] values = settings.getStringArray(key);
+    return values != null ? values : new String[0];
+  }
+
+  public boolean annotateSpill() {
+    return settings.getBoolean(ANNOTATE_SPILL_PROP_KEY).orElse(false);
+  }
+
+  public boolean terminateOrphans() {
+    return settings.getBoolean(TERMINATE_ORPHANS_PROP_KEY).orElse(false);
+  }
+
+  public String annotateFormat() {
+    return settings.get(ANNOTATE_FORMAT_PROP_KEY).orElse(AUTO_FORMAT);
+  }
+
 }
@@ -0,0 +1,67 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.StreamConsumer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+/**
+ * Runs lscm commands. {@link org.sonar.api.utils.command.CommandExecutor} cannot be extended, this is the seam used
+ * to record, replay or simulate the client.
+ */
+@FunctionalInterface
+interface JazzRtcExecutor {
+
+  /**
+   * @return the exit code of the command
+   * @throws org.sonar.api.utils.command.TimeoutException if the command does not complete in time
+   */
+  int execute(Command cl, StreamConsumer stdout, StreamConsumer stderr, long timeoutMilliseconds);
+
+  /**
+   * Runs the command with its standard output written to a file, in the platform encoding. By default the output is
+   * streamed to the file line by line, executors running a real process redirect it instead.
+   *
+   * @return the exit code of the command
+   * @throws org.sonar.api.utils.command.TimeoutException if the command does not complete in time
+   */
+  default int executeToFile(Command cl, File stdout, StreamConsumer stderr, long timeoutMilliseconds) {
+    try (Writer writer = Files.newBufferedWriter(stdout.toPath(), Charset.defaultCharset())) {
+      return execute(cl, line -> {
+        try {
+          writer.write(line);
+          writer.write('\n');
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }, stderr, timeoutMilliseconds);
+    } catch (IOException | UncheckedIOException e) {
+      throw new IllegalStateException("Unable to write the output of [" + cl + "] to " + stdout, e);
+    }
+  }
+
+}
@@ -0,0 +1,282 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.DateUtils;
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.StringStreamConsumer;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Alternative to <code>lscm annotate</code>: the history of a component is fetched once (one command for the list of
+ * change sets, one per change set for its diff), then the attribution of every line is computed locally by replaying
+ * the diffs of each file, in parallel.
+ */
+class JazzRtcHistoryBlame {
+
+  private static final Logger LOG = Loggers.get(JazzRtcHistoryBlame.class);
+
+  private static final String[] DATE_PATTERNS = {
+    "yyyy-MM-dd'T'HH:mm:ss.SSSZ", "yyyy-MM-dd'T'HH:mm:ss.SSSXXX", "yyyy-MM-dd'T'HH:mm:ssXXX", "yyyy-MM-dd hh:mm a", "dd-MMM-yyyy hh:mm a"};
+
+  private final JazzRtcBlameCommand lscm;
+  private final int maxChangesets;
+
+  JazzRtcHistoryBlame(JazzRtcBlameCommand lscm, int maxChangesets) {
+    this.lscm = lscm;
+    this.maxChangesets = maxChangesets;
+  }
+
+  static class Changeset {
+    final String uuid;
+    final String author;
+    final Date date;
+
+    Changeset(String uuid, String author, Date date) {
+      this.uuid = uuid;
+      this.author = author;
+      this.date = date;
+    }
+  }
+
+  private static class FileHistory {
+    private final List<Integer> changesets = new ArrayList<>();
+    private final List<JazzRtcUnifiedDiff.FileDiff> diffs = new ArrayList<>();
+
+    /**
+     * @return the change set of every line, or null if the file was created before the oldest fetched change set
+     */
+    @CheckForNull
+    int[] replay() {
+      if (changesets.isEmpty()) {
+        return null;
+      }
+      int[] origins = null;
+      for (int i = 0; i < changesets.size(); i++) {
+        JazzRtcUnifiedDiff.FileDiff diff = diffs.get(i);
+        if (diff.deleted) {
+          origins = null;
+          continue;
+        }
+        if (origins == null && !diff.hunks.isEmpty() && diff.hunks.get(0).oldCount > 0) {
+          return null;
+        }
+        origins = JazzRtcUnifiedDiff.apply(origins, diff.hunks, changesets.get(i));
+        if (origins == null) {
+          return null;
+        }
+      }
+      return origins;
+    }
+  }
+
+  /**
+   * @param repository the repository the component is loaded from
+   * @param filenames paths relative to the sandbox root of the files to blame, all loaded from the component
+   * @return the blame of the files whose whole history could be replayed, from change sets with a date
+   */
+  Map<String, List<BlameLine>> blame(JazzRtcRepository repository, File sandboxRoot, String component, Collection<String> filenames) {
+    List<Changeset> history = history(repository, sandboxRoot, component);
+    if (history.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    // only the shape of the hunks of the requested files is kept in memory
+    Map<String, FileHistory> histories = new HashMap<>();
+    for (String filename : filenames) {
+      histories.put(filename, new FileHistory());
+    }
+    for (int i = 0; i < history.size(); i++) {
+      Map<String, JazzRtcUnifiedDiff.FileDiff> diff = diff(repository, sandboxRoot, history.get(i));
+      if (diff == null) {
+        return Collections.emptyMap();
+      }
+      for (Map.Entry<String, JazzRtcUnifiedDiff.FileDiff> entry : diff.entrySet()) {
+        FileHistory fileHistory = histories.get(entry.getKey());
+        if (fileHistory != null) {
+          fileHistory.changesets.add(i);
+          fileHistory.diffs.add(entry.getValue());
+        }
+      }
+    }
+
+    BlameLine[] blameLines = new BlameLine[history.size()];
+    for (int i = 0; i < blameLines.length; i++) {
+      Changeset changeset = history.get(i);
+      blameLines[i] = new BlameLine().date(changeset.date).revision(changeset.uuid).author(changeset.author);
+    }
+    Map<String, List<BlameLine>> results = new ConcurrentHashMap<>();
+    filenames.parallelStream().forEach(filename -> {
+      int[] origins = histories.get(filename).replay();
+      if (origins != null) {
+        List<BlameLine> lines = new ArrayList<>(origins.length);
+        for (int origin : origins) {
+          if (blameLines[origin].date() == null) {
+            // the scanner rejects a blame without date, annotate gives one
+            return;
+          }
+          // change sets share their BlameLine, the attribution costs one reference per line
+          lines.add(blameLines[origin]);
+        }
+        results.put(filename, lines);
+      }
+    });
+    LOG.debug("{} of {} files of component {} blamed from {} change sets", results.size(), filenames.size(), component, history.size());
+    return results;
+  }
+
+  /**
+   * @return the change sets of the component, oldest first
+   */
+  List<Changeset> history(JazzRtcRepository repository, File sandboxRoot, String component) {
+    Command cl = lscm.command(repository, sandboxRoot, "list changesets", "-j", "-m", String.valueOf(maxChangesets), "-C", component);
+    StringBuilder json = new StringBuilder();
+    StringStreamConsumer stderr = new StringStreamConsumer();
+    int exitCode = lscm.execute(repository, cl, line -> json.append(line).append('\n'), stderr);
+    if (exitCode != 0) {
+      LOG.warn("Unable to get the history of component {}, annotate will be used instead: {}", component, stderr.getOutput());
+      return Collections.emptyList();
+    }
+    try {
+      List<Changeset> history = parseHistory(json.toString());
+      Collections.reverse(history);
+      return history;
+    } catch (IOException e) {
+      LOG.warn("Unable to parse the history of component " + component + ", annotate will be used instead", e);
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * Reads the <code>changes</code> of <code>lscm list changesets -j</code>, newest first.
+   */
+  static List<Changeset> parseHistory(String json) throws IOException {
+    JazzRtcJsonReader reader = new JazzRtcJsonReader(new StringReader(json));
+    List<Changeset> changesets = new ArrayList<>();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if ("changes".equals(reader.nextName())) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+          changesets.add(parseChangeset(reader));
+        }
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return changesets;
+  }
+
+  private static Changeset parseChangeset(JazzRtcJsonReader reader) throws IOException {
+    String uuid = null;
+    String author = null;
+    Date date = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if ("uuid".equals(name)) {
+        uuid = reader.nextString();
+      } else if ("author".equals(name)) {
+        author = parseAuthor(reader);
+      } else if ("modified".equals(name)) {
+        date = parseDate(reader.nextString());
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (uuid == null) {
+      throw new IOException("Change set without uuid");
+    }
+    return new Changeset(uuid, author, date);
+  }
+
+  @CheckForNull
+  private static String parseAuthor(JazzRtcJsonReader reader) throws IOException {
+    if (reader.peek() != JazzRtcJsonReader.Token.BEGIN_OBJECT) {
+      return reader.nextString();
+    }
+    // newer clients describe the contributor
+    String author = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if ("name".equals(reader.nextName())) {
+        author = reader.nextString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return author;
+  }
+
+  @CheckForNull
+  static Date parseDate(@Nullable String date) {
+    if (date == null) {
+      return null;
+    }
+    for (String pattern : DATE_PATTERNS) {
+      try {
+        return new SimpleDateFormat(pattern, Locale.ENGLISH).parse(date);
+      } catch (ParseException e) {
+        // try next
+      }
+    }
+    Date parsed = DateUtils.parseDateTimeQuietly(date);
+    if (parsed == null) {
+      LOG.warn("Unable to parse change set date {}", date);
+    }
+    return parsed;
+  }
+
+  @CheckForNull
+  private Map<String, JazzRtcUnifiedDiff.FileDiff> diff(JazzRtcRepository repository, File sandboxRoot, Changeset changeset) {
+    Command cl = lscm.command(repository, sandboxRoot, "diff", "changeset", changeset.uuid);
+    List<String> lines = new ArrayList<>();
+    StringStreamConsumer stderr = new StringStreamConsumer();
+    int exitCode = lscm.execute(repository, cl, lines::add, stderr);
+    if (exitCode != 0) {
+      LOG.warn("Unable to get the changes of change set {}, annotate will be used instead: {}", changeset.uuid, stderr.getOutput());
+      return null;
+    }
+    return JazzRtcUnifiedDiff.parse(lines);
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.batch.scm.IgnoreCommand;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Files ignored by the <code>.jazzignore</code> files of the sandbox. The ignore files of the project and of its parent
+ * directories up to the sandbox root are read once by {@link #init(Path)}, then every lookup is done in memory.
+ * <ul>
+ * <li><code>core.ignore</code> patterns match the files and folders directly in the folder of the ignore file</li>
+ * <li><code>core.ignore.recursive</code> patterns match the files and folders anywhere below it</li>
+ * </ul>
+ * Everything in an ignored folder is ignored.
+ */
+public class JazzRtcIgnoreCommand implements IgnoreCommand {
+
+  private static final Logger LOG = Loggers.get(JazzRtcIgnoreCommand.class);
+
+  static final String IGNORE_FILE = ".jazzignore";
+  static final String IGNORE_PROP = "core.ignore";
+  static final String IGNORE_RECURSIVE_PROP = "core.ignore.recursive";
+  private static final Pattern GLOB = Pattern.compile("\\{([^}]*)\\}");
+
+  private final JazzRtcSandboxIndex sandboxIndex;
+  private Path root;
+  private Map<Path, Rules> rulesByDir = Collections.emptyMap();
+  private final Map<Path, DirState> states = new ConcurrentHashMap<>();
+
+  public JazzRtcIgnoreCommand(JazzRtcSandboxIndex sandboxIndex) {
+    this.sandboxIndex = sandboxIndex;
+  }
+
+  private static class Rules {
+    private final Pattern direct;
+    private final Pattern recursive;
+
+    Rules(Pattern direct, Pattern recursive) {
+      this.direct = direct;
+      this.recursive = recursive;
+    }
+  }
+
+  private static class DirState {
+    private final boolean ignored;
+    // recursive patterns of the folder and of its parents
+    private final List<Pattern> recursive;
+
+    DirState(boolean ignored, List<Pattern> recursive) {
+      this.ignored = ignored;
+      this.recursive = recursive;
+    }
+  }
+
+  @Override
+  public void init(Path baseDir) {
+    Path project = baseDir.toAbsolutePath().normalize();
+    Path sandboxRoot = sandboxIndex.sandboxRoot(project);
+    root = sandboxRoot != null ? sandboxRoot : project;
+    Map<Path, Rules> rules = new HashMap<>();
+    for (Path dir = project.getParent(); dir != null && dir.startsWith(root); dir = dir.getParent()) {
+      readRules(dir, rules);
+    }
+    try {
+      Files.walkFileTree(project, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+          if (JazzRtcSandboxIndex.METADATA_DIR.equals(String.valueOf(dir.getFileName()))) {
+            return FileVisitResult.SKIP_SUBTREE;
+          }
+          readRules(dir, rules);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read the " + IGNORE_FILE + " files of " + project, e);
+    }
+    rulesByDir = rules;
+    states.clear();
+    LOG.debug("{} {} files found in {}", rules.size(), IGNORE_FILE, project);
+  }
+
+  @Override
+  public boolean isIgnored(Path absolutePath) {
+    Path path = absolutePath.toAbsolutePath().normalize();
+    Path parent = path.getParent();
+    if (root == null || parent == null || !parent.startsWith(root)) {
+      return false;
+    }
+    return isIgnored(state(parent), rulesByDir.get(parent), path.getFileName().toString());
+  }
+
+  @Override
+  public void clean() {
+    rulesByDir = Collections.emptyMap();
+    states.clear();
+    root = null;
+  }
+
+  private DirState state(Path dir) {
+    DirState state = states.get(dir);
+    if (state != null) {
+      return state;
+    }
+    List<Pattern> inherited = Collections.emptyList();
+    boolean ignored = false;
+    if (!dir.equals(root)) {
+      Path parent = dir.getParent();
+      DirState parentState = state(parent);
+      ignored = isIgnored(parentState, rulesByDir.get(parent), dir.getFileName().toString());
+      inherited = parentState.recursive;
+    }
+    Rules rules = rulesByDir.get(dir);
+    List<Pattern> recursive = inherited;
+    if (rules != null && rules.recursive != null) {
+      recursive = new ArrayList<>(inherited);
+      recursive.add(rules.recursive);
+    }
+    state = new DirState(ignored, recursive);
+    states.put(dir, state);
+    return state;
+  }
+
+  private static boolean isIgnored(DirState parentState, @CheckForNull Rules parentRules, String name) {
+    if (parentState.ignored) {
+      return true;
+    }
+    if (parentRules != null && parentRules.direct != null && parentRules.direct.matcher(name).matches()) {
+      return true;
+    }
+    for (Pattern pattern : parentState.recursive) {
+      if (pattern.matcher(name).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void readRules(Path dir, Map<Path, Rules> rules) {
+    Path file = dir.resolve(IGNORE_FILE);
+    if (!Files.isRegularFile(file)) {
+      return;
+    }
+    Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      properties.load(reader);
+    } catch (IOException | IllegalArgumentException e) {
+      LOG.warn("Unable to read " + file + ", it is not taken into account", e);
+      return;
+    }
+    Pattern direct = compile(properties.getProperty(IGNORE_PROP));
+    Pattern recursive = compile(properties.getProperty(IGNORE_RECURSIVE_PROP));
+    if (direct != null || recursive != null) {
+      rules.put(dir, new Rules(direct, recursive));
+    }
+  }
+
+  /**
+   * @param patterns space separated list of patterns in braces, for example <code>{bin} {*.class}</code>
+   * @return one pattern matching any of them, or null if there is none
+   */
+  @CheckForNull
+  static Pattern compile(@CheckForNull String patterns) {
+    if (patterns == null) {
+      return null;
+    }
+    StringBuilder regex = new StringBuilder();
+    Matcher matcher = GLOB.matcher(patterns);
+    while (matcher.find()) {
+      if (regex.length() > 0) {
+        regex.append('|');
+      }
+      appendGlob(regex, matcher.group(1));
+    }
+    return regex.length() > 0 ? Pattern.compile(regex.toString()) : null;
+  }
+
+  private static void appendGlob(StringBuilder regex, String glob) {
+    regex.append("(?:");
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*') {
+        regex.append(".*");
+      } else if (c == '?') {
+        regex.append('.');
+      } else if (c == '\\' && i + 1 < glob.length()) {
+        i++;
+        regex.append(Pattern.quote(String.valueOf(glob.charAt(i))));
+      } else {
+        regex.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+    regex.append(')');
+  }
+}
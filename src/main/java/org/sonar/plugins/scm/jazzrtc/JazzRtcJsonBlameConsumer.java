@@ -0,0 +1,334 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.command.StreamConsumer;
+
+import javax.annotation.CheckForNull;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses the output of <code>lscm annotate -j</code>. Dates have a second resolution and do not depend on the locale
+ * of the client, and the content of the lines is skipped by the reader instead of being matched against a pattern.
+ * The output is parsed as it is consumed, only the annotation being written is kept until it is complete.
+ */
+public class JazzRtcJsonBlameConsumer implements StreamConsumer {
+
+  private static final String ANNOTATIONS = "annotations";
+
+  private enum State {
+    START, MEMBERS, ANNOTATIONS, DONE
+  }
+
+  private final String filename;
+  private final PendingInput input = new PendingInput();
+  // lines of a change set share their BlameLine
+  private final Map<String, BlameLine> byRevision = new HashMap<>();
+  private final List<BlameLine> lines = new ArrayList<>();
+  private JazzRtcJsonReader reader = new JazzRtcJsonReader(input);
+  private State state = State.START;
+  // {"annotations": [...]}, depending on the client version
+  private boolean wrapped;
+  private boolean found;
+  private IOException error;
+
+  public JazzRtcJsonBlameConsumer(String filename) {
+    this.filename = filename;
+  }
+
+  @Override
+  public void consumeLine(String line) {
+    if (error != null || state == State.DONE) {
+      return;
+    }
+    input.append(line);
+    try {
+      parseAvailable();
+    } catch (IOException e) {
+      error = e;
+    }
+  }
+
+  /**
+   * @throws IOException if the output is not the JSON expected from annotate
+   */
+  public List<BlameLine> getLines() throws IOException {
+    if (error == null && state != State.DONE) {
+      input.end();
+      try {
+        parseAvailable();
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+    return lines;
+  }
+
+  /**
+   * Parses the output read from elsewhere than {@link #consumeLine(String)}, for example a file it was written to.
+   *
+   * @throws IOException if the output is not the JSON expected from annotate
+   */
+  public List<BlameLine> getLines(Reader output) throws IOException {
+    reader = new JazzRtcJsonReader(output);
+    while (state != State.DONE) {
+      step();
+    }
+    return lines;
+  }
+
+  /**
+   * Parses the complete values of the pending input. A value which is not complete yet is parsed again from its
+   * beginning once more input is available.
+   */
+  private void parseAvailable() throws IOException {
+    while (state != State.DONE) {
+      reader.mark();
+      try {
+        step();
+      } catch (MoreInputNeeded e) {
+        input.rewind();
+        reader.reset();
+        return;
+      }
+      input.compact();
+    }
+  }
+
+  private void step() throws IOException {
+    switch (state) {
+      case START:
+        if (reader.peek() == JazzRtcJsonReader.Token.BEGIN_ARRAY) {
+          reader.beginArray();
+          state = State.ANNOTATIONS;
+        } else {
+          reader.beginObject();
+          wrapped = true;
+          state = State.MEMBERS;
+        }
+        break;
+      case MEMBERS:
+        stepMembers();
+        break;
+      case ANNOTATIONS:
+        if (reader.hasNext()) {
+          readAnnotation(reader);
+        } else {
+          reader.endArray();
+          state = wrapped ? State.MEMBERS : State.DONE;
+        }
+        break;
+      default:
+        throw new IllegalStateException("Annotations already parsed");
+    }
+  }
+
+  private void stepMembers() throws IOException {
+    if (!reader.hasNext()) {
+      reader.endObject();
+      if (!found) {
+        throw new IOException("No annotation found in the output for " + filename);
+      }
+      state = State.DONE;
+      return;
+    }
+    String name = reader.nextName();
+    if (!found && ANNOTATIONS.equals(name) && reader.peek() == JazzRtcJsonReader.Token.BEGIN_ARRAY) {
+      reader.beginArray();
+      found = true;
+      state = State.ANNOTATIONS;
+    } else {
+      reader.skipValue();
+    }
+  }
+
+  private void readAnnotation(JazzRtcJsonReader reader) throws IOException {
+    Annotation annotation = new Annotation();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if ("line-no".equals(name) || "line".equals(name)) {
+        annotation.lineNumber = reader.nextString();
+      } else if ("changeset".equals(name) && reader.peek() == JazzRtcJsonReader.Token.BEGIN_OBJECT) {
+        reader.beginObject();
+        while (reader.hasNext()) {
+          annotation.read(reader.nextName(), reader);
+        }
+        reader.endObject();
+      } else {
+        annotation.read(name, reader);
+      }
+    }
+    reader.endObject();
+
+    int expectingLine = lines.size() + 1;
+    if (annotation.lineNumber != null && !String.valueOf(expectingLine).equals(annotation.lineNumber)) {
+      throw new IOException("Unable to blame file " + filename + ". Expecting blame info for line " + expectingLine + " but was "
+        + annotation.lineNumber);
+    }
+    lines.add(annotation.toBlameLine());
+  }
+
+  private class Annotation {
+    private String lineNumber;
+    private String id;
+    private String uuid;
+    private String author;
+    private String date;
+
+    void read(String name, JazzRtcJsonReader reader) throws IOException {
+      if ("id".equals(name) || "changeset".equals(name)) {
+        id = reader.nextString();
+      } else if ("uuid".equals(name)) {
+        uuid = reader.nextString();
+      } else if ("author".equals(name)) {
+        author = readAuthor(reader);
+      } else if ("date".equals(name) || "modified".equals(name)) {
+        date = reader.nextString();
+      } else {
+        // line content, comment, work items...
+        reader.skipValue();
+      }
+    }
+
+    /**
+     * @throws IOException if the change set or its date is missing, the scanner would reject the blame
+     */
+    BlameLine toBlameLine() throws IOException {
+      // same revision as the text output when the client gives the change set number
+      String revision = id != null ? id : uuid;
+      if (revision == null) {
+        throw new IOException("No change set for line " + (lines.size() + 1) + " of " + filename);
+      }
+      BlameLine line = byRevision.get(revision);
+      if (line == null) {
+        Date parsed = JazzRtcHistoryBlame.parseDate(date);
+        if (parsed == null) {
+          throw new IOException("No valid date for line " + (lines.size() + 1) + " of " + filename + ": " + date);
+        }
+        line = new BlameLine().date(parsed).revision(revision).author(author);
+        byRevision.put(revision, line);
+      }
+      return line;
+    }
+  }
+
+  @CheckForNull
+  private static String readAuthor(JazzRtcJsonReader reader) throws IOException {
+    if (reader.peek() != JazzRtcJsonReader.Token.BEGIN_OBJECT) {
+      return reader.nextString();
+    }
+    String author = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if ("name".equals(reader.nextName())) {
+        author = reader.nextString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return author;
+  }
+
+  /**
+   * Lines consumed and not parsed yet. Reading past them asks for more input, until the end of the output.
+   */
+  private static class PendingInput extends Reader {
+    private final StringBuilder pending = new StringBuilder();
+    private int position;
+    private boolean ended;
+
+    void append(String line) {
+      pending.append(line).append('\n');
+    }
+
+    void end() {
+      ended = true;
+    }
+
+    void rewind() {
+      position = 0;
+    }
+
+    /**
+     * Drops what has been parsed.
+     */
+    void compact() {
+      pending.delete(0, position);
+      position = 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (position < pending.length()) {
+        return pending.charAt(position++);
+      }
+      if (ended) {
+        return -1;
+      }
+      throw MoreInputNeeded.INSTANCE;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      int c = read();
+      if (c == -1) {
+        return -1;
+      }
+      cbuf[off] = (char) c;
+      return 1;
+    }
+
+    @Override
+    public void close() {
+      // nothing to release
+    }
+  }
+
+  private static class MoreInputNeeded extends IOException {
+    private static final long serialVersionUID = 1L;
+    private static final MoreInputNeeded INSTANCE = new MoreInputNeeded();
+
+    private MoreInputNeeded() {
+      super("More input needed");
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      // control flow, thrown at every incomplete line
+      return this;
+    }
+  }
+}
@@ -0,0 +1,293 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import javax.annotation.CheckForNull;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Minimal pull parser for the JSON output of lscm (<code>-j</code> option). Values are read one token at a time,
+ * nothing is materialized besides the strings actually requested, and unwanted values are skipped without
+ * allocation.
+ */
+class JazzRtcJsonReader {
+
+  enum Token {
+    BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+  }
+
+  private final Reader reader;
+  private final StringBuilder buffer = new StringBuilder();
+  private int peeked = -2;
+  private Token token;
+  // true when the next string of the current object is a member name
+  private boolean expectName;
+  private final boolean[] inObject = new boolean[256];
+  private int depth;
+  private int markedDepth;
+  private boolean markedExpectName;
+  private int markedPeeked = -2;
+
+  JazzRtcJsonReader(Reader reader) {
+    this.reader = reader;
+  }
+
+  Token peek() throws IOException {
+    if (token == null) {
+      token = readToken(false);
+    }
+    return token;
+  }
+
+  /**
+   * Remembers the position of the parser between two values, to come back to it with {@link #reset()} once the
+   * underlying reader has been rewound to the same position. Used to parse an output that is still being written.
+   */
+  void mark() {
+    if (token != null) {
+      throw new IllegalStateException("Unable to mark a peeked token");
+    }
+    markedDepth = depth;
+    markedExpectName = expectName;
+    markedPeeked = peeked;
+  }
+
+  void reset() {
+    token = null;
+    depth = markedDepth;
+    expectName = markedExpectName;
+    peeked = markedPeeked;
+  }
+
+  boolean hasNext() throws IOException {
+    Token next = peek();
+    return next != Token.END_OBJECT && next != Token.END_ARRAY && next != Token.END_DOCUMENT;
+  }
+
+  void beginObject() throws IOException {
+    expect(Token.BEGIN_OBJECT);
+  }
+
+  void endObject() throws IOException {
+    expect(Token.END_OBJECT);
+  }
+
+  void beginArray() throws IOException {
+    expect(Token.BEGIN_ARRAY);
+  }
+
+  void endArray() throws IOException {
+    expect(Token.END_ARRAY);
+  }
+
+  String nextName() throws IOException {
+    expect(Token.NAME);
+    return buffer.toString();
+  }
+
+  /**
+   * @return the value as a string, whatever its JSON type (null for JSON null)
+   */
+  @CheckForNull
+  String nextString() throws IOException {
+    Token next = peek();
+    if (next != Token.STRING && next != Token.NUMBER && next != Token.BOOLEAN && next != Token.NULL) {
+      throw syntaxError("Expected a value but was " + next);
+    }
+    token = null;
+    return next == Token.NULL ? null : buffer.toString();
+  }
+
+  /**
+   * Skips the next value. The strings it contains are read but not copied.
+   */
+  void skipValue() throws IOException {
+    int level = 0;
+    do {
+      Token next = token != null ? token : readToken(true);
+      token = null;
+      if (next == Token.BEGIN_OBJECT || next == Token.BEGIN_ARRAY) {
+        level++;
+      } else if (next == Token.END_OBJECT || next == Token.END_ARRAY) {
+        level--;
+      } else if (next == Token.END_DOCUMENT) {
+        throw syntaxError("Unexpected end of document");
+      }
+    } while (level > 0);
+  }
+
+  private void expect(Token expected) throws IOException {
+    Token next = peek();
+    if (next != expected) {
+      throw syntaxError("Expected " + expected + " but was " + next);
+    }
+    token = null;
+  }
+
+  private Token readToken(boolean skip) throws IOException {
+    int c = nextNonWhitespace();
+    while (c == ',' || c == ':') {
+      c = nextNonWhitespace();
+    }
+    switch (c) {
+      case -1:
+        return Token.END_DOCUMENT;
+      case '{':
+        push(true);
+        return Token.BEGIN_OBJECT;
+      case '[':
+        push(false);
+        return Token.BEGIN_ARRAY;
+      case '}':
+      case ']':
+        if (depth == 0) {
+          throw syntaxError("Unexpected " + (char) c);
+        }
+        depth--;
+        expectName = depth > 0 && inObject[depth - 1];
+        return c == '}' ? Token.END_OBJECT : Token.END_ARRAY;
+      case '"':
+        readString(skip);
+        if (expectName) {
+          expectName = false;
+          return Token.NAME;
+        }
+        expectName = depth > 0 && inObject[depth - 1];
+        return Token.STRING;
+      default:
+        readLiteral(c);
+        expectName = depth > 0 && inObject[depth - 1];
+        return literalToken();
+    }
+  }
+
+  private void push(boolean object) throws IOException {
+    if (depth == inObject.length) {
+      throw syntaxError("Nesting too deep");
+    }
+    inObject[depth++] = object;
+    expectName = object;
+  }
+
+  private Token literalToken() throws IOException {
+    if ("null".contentEquals(buffer)) {
+      return Token.NULL;
+    }
+    if ("true".contentEquals(buffer) || "false".contentEquals(buffer)) {
+      return Token.BOOLEAN;
+    }
+    if (buffer.length() > 0 && (Character.isDigit(buffer.charAt(0)) || buffer.charAt(0) == '-')) {
+      return Token.NUMBER;
+    }
+    throw syntaxError("Unexpected literal " + buffer);
+  }
+
+  /**
+   * @param skip true to check the string without copying it
+   */
+  private void readString(boolean skip) throws IOException {
+    buffer.setLength(0);
+    while (true) {
+      int c = read();
+      if (c == -1) {
+        throw syntaxError("Unterminated string");
+      } else if (c == '"') {
+        return;
+      } else if (c == '\\') {
+        readEscape();
+        if (skip) {
+          buffer.setLength(0);
+        }
+      } else if (!skip) {
+        buffer.append((char) c);
+      }
+    }
+  }
+
+  private void readEscape() throws IOException {
+    int c = read();
+    switch (c) {
+      case 'n':
+        buffer.append('\n');
+        break;
+      case 't':
+        buffer.append('\t');
+        break;
+      case 'r':
+        buffer.append('\r');
+        break;
+      case 'b':
+        buffer.append('\b');
+        break;
+      case 'f':
+        buffer.append('\f');
+        break;
+      case 'u':
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+          int digit = Character.digit(read(), 16);
+          if (digit == -1) {
+            throw syntaxError("Invalid unicode escape sequence");
+          }
+          value = (value << 4) + digit;
+        }
+        buffer.append((char) value);
+        break;
+      case -1:
+        throw syntaxError("Unterminated escape sequence");
+      default:
+        // \" \\ \/
+        buffer.append((char) c);
+    }
+  }
+
+  private void readLiteral(int first) throws IOException {
+    buffer.setLength(0);
+    int c = first;
+    while (c != -1 && c != ',' && c != '}' && c != ']' && c != ':' && !Character.isWhitespace(c)) {
+      buffer.append((char) c);
+      c = read();
+    }
+    peeked = c;
+  }
+
+  private int nextNonWhitespace() throws IOException {
+    int c = read();
+    while (c != -1 && Character.isWhitespace(c)) {
+      c = read();
+    }
+    return c;
+  }
+
+  private int read() throws IOException {
+    if (peeked != -2) {
+      int c = peeked;
+      peeked = -2;
+      return c;
+    }
+    return reader.read();
+  }
+
+  private IOException syntaxError(String message) {
+    return new IOException("Invalid lscm JSON output: " + message);
+  }
+}
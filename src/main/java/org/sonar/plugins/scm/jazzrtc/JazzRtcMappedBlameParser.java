@@ -0,0 +1,259 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Parses the text output of <code>lscm annotate</code> written to a file, with the same rules as
+ * {@link JazzRtcBlameConsumer}. The file is memory-mapped and scanned byte by byte: no line is copied to the heap, and
+ * only the author and date of each change set are decoded, once.
+ */
+class JazzRtcMappedBlameParser {
+
+  private static final Logger LOG = Loggers.get(JazzRtcMappedBlameParser.class);
+
+  /**
+   * Size of the part of the file mapped at a time. Lines are never split across two windows, except lines longer
+   * than a window whose blame info, at their beginning, is parsed from the first window.
+   */
+  static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  private final String filename;
+  private final Charset charset;
+  private final int windowSize;
+  private final DateFormat format = new SimpleDateFormat("yyyy-MM-dd hh:mm a", Locale.ENGLISH);
+  // lines of a change set share their BlameLine
+  private final Map<Long, BlameLine> byRevision = new HashMap<>();
+  private final List<BlameLine> lines = new ArrayList<>();
+
+  JazzRtcMappedBlameParser(String filename, Charset charset) {
+    this(filename, charset, DEFAULT_WINDOW_SIZE);
+  }
+
+  JazzRtcMappedBlameParser(String filename, Charset charset, int windowSize) {
+    this.filename = filename;
+    this.charset = charset;
+    this.windowSize = windowSize;
+  }
+
+  List<BlameLine> parse(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      long position = 0;
+      boolean skipping = false;
+      while (position < size) {
+        int length = (int) Math.min(windowSize, size - position);
+        boolean eof = position + length == size;
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        int start = 0;
+        if (skipping) {
+          // rest of a line longer than the previous window
+          int end = indexOfNewLine(window, 0, length);
+          if (end < 0) {
+            position += length;
+            continue;
+          }
+          start = end + 1;
+          skipping = false;
+        }
+        while (start < length) {
+          int end = indexOfNewLine(window, start, length);
+          if (end >= 0) {
+            parseLine(window, start, end);
+            start = end + 1;
+          } else {
+            if (eof) {
+              parseLine(window, start, length);
+              start = length;
+            } else if (start == 0) {
+              parseLine(window, 0, length);
+              skipping = true;
+              start = length;
+            }
+            // otherwise the line is mapped again from its beginning by the next window
+            break;
+          }
+        }
+        position += start;
+      }
+    }
+    return lines;
+  }
+
+  private static int indexOfNewLine(ByteBuffer buffer, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (buffer.get(i) == '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Matches <code>(\d+)\s+(.*?)\s+\((\d+)\) (\d+-\d+-\d+ \d+:\d+ (AM|PM)) (.*)</code>, lines not matching are content
+   * of a previous line.
+   */
+  private void parseLine(ByteBuffer buffer, int from, int end) {
+    int to = end > from && buffer.get(end - 1) == '\r' ? (end - 1) : end;
+    int i = from;
+    long lineNumber = 0;
+    while (i < to && isDigit(buffer.get(i))) {
+      lineNumber = Math.min(lineNumber * 10 + (buffer.get(i) - '0'), Integer.MAX_VALUE + 1L);
+      i++;
+    }
+    if (i == from || i >= to || !isWhitespace(buffer.get(i))) {
+      return;
+    }
+    while (i < to && isWhitespace(buffer.get(i))) {
+      i++;
+    }
+    int authorStart = i;
+    for (int open = authorStart + 1; open < to; open++) {
+      if (buffer.get(open) != '(' || !isWhitespace(buffer.get(open - 1))) {
+        continue;
+      }
+      int revisionEnd = digits(buffer, open + 1, to);
+      if (revisionEnd < 0 || revisionEnd + 1 >= to || buffer.get(revisionEnd) != ')' || buffer.get(revisionEnd + 1) != ' ') {
+        continue;
+      }
+      int dateEnd = date(buffer, revisionEnd + 2, to);
+      if (dateEnd < 0 || dateEnd >= to || buffer.get(dateEnd) != ' ') {
+        continue;
+      }
+      int authorEnd = open - 1;
+      while (authorEnd > authorStart && isWhitespace(buffer.get(authorEnd - 1))) {
+        authorEnd--;
+      }
+      addLine(buffer, from, to, lineNumber, authorStart, authorEnd, open + 1, revisionEnd, revisionEnd + 2, dateEnd);
+      return;
+    }
+  }
+
+  private void addLine(ByteBuffer buffer, int from, int to, long lineNumber, int authorStart, int authorEnd, int revisionStart, int revisionEnd,
+    int dateStart, int dateEnd) {
+    int expectingLine = lines.size() + 1;
+    if (lineNumber > Integer.MAX_VALUE) {
+      throw new IllegalStateException("Unable to blame file " + filename + ". Unrecognized blame info at line " + expectingLine + ": "
+        + decode(buffer, from, to, charset));
+    }
+    if (expectingLine != lineNumber) {
+      throw new IllegalStateException("Unable to blame file " + filename + ". Expecting blame info for line " + expectingLine + " but was "
+        + lineNumber + ": " + decode(buffer, from, to, charset));
+    }
+    Long revision = revisionEnd - revisionStart <= 18 ? number(buffer, revisionStart, revisionEnd) : null;
+    BlameLine line = revision != null ? byRevision.get(revision) : null;
+    if (line == null) {
+      line = new BlameLine().date(parseDate(decode(buffer, dateStart, dateEnd, StandardCharsets.US_ASCII)))
+        .revision(decode(buffer, revisionStart, revisionEnd, StandardCharsets.US_ASCII))
+        .author(decode(buffer, authorStart, authorEnd, charset));
+      if (revision != null) {
+        byRevision.put(revision, line);
+      }
+    }
+    lines.add(line);
+  }
+
+  /**
+   * @return the index after the digits, or -1 if there is none
+   */
+  private static int digits(ByteBuffer buffer, int from, int to) {
+    int i = from;
+    while (i < to && isDigit(buffer.get(i))) {
+      i++;
+    }
+    return i > from ? i : -1;
+  }
+
+  /**
+   * @return the index after a <code>\d+-\d+-\d+ \d+:\d+ (AM|PM)</code> date, or -1 if there is none
+   */
+  private static int date(ByteBuffer buffer, int from, int to) {
+    int i = from;
+    byte[] separators = {'-', '-', ' ', ':', ' '};
+    for (byte separator : separators) {
+      i = digits(buffer, i, to);
+      if (i < 0 || i >= to || buffer.get(i) != separator) {
+        return -1;
+      }
+      i++;
+    }
+    if (i + 1 >= to || (buffer.get(i) != 'A' && buffer.get(i) != 'P') || buffer.get(i + 1) != 'M') {
+      return -1;
+    }
+    return i + 2;
+  }
+
+  private static long number(ByteBuffer buffer, int from, int to) {
+    long value = 0;
+    for (int i = from; i < to; i++) {
+      value = value * 10 + (buffer.get(i) - '0');
+    }
+    return value;
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+  }
+
+  private static String decode(ByteBuffer buffer, int from, int to, Charset charset) {
+    byte[] bytes = new byte[to - from];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(from + i);
+    }
+    return new String(bytes, charset);
+  }
+
+  @CheckForNull
+  private Date parseDate(String date) {
+    try {
+      return format.parse(date);
+    } catch (ParseException e) {
+      LOG.warn("skip ParseException: " + e.getMessage() + " during parsing date " + date + " with Locale " + Locale.ENGLISH, e);
+      return null;
+    }
+  }
+}
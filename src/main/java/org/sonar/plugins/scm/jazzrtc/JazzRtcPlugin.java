@@ -28,6 +28,7 @@ public final class JazzRtcPlugin implements Plugin {
     context.addExtension(JazzRtcScmProvider.class);
     context.addExtension(JazzRtcBlameCommand.class);
     context.addExtension(JazzRtcConfiguration.class);
+    context.addExtension(JazzRtcSandboxIndex.class);
     context.addExtensions(JazzRtcConfiguration.getProperties());
   }
 }
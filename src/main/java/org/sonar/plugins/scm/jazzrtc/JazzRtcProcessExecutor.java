@@ -0,0 +1,208 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.StreamConsumer;
+import org.sonar.api.utils.command.TimeoutException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs lscm as a child process of the scanner, tracked by {@link JazzRtcProcesses} until it completes. Output to a
+ * file is redirected by the operating system: no thread reads it while the process runs, so the process is never
+ * slowed down by a slow consumer.
+ */
+class JazzRtcProcessExecutor implements JazzRtcExecutor {
+
+  /**
+   * Once the process completed, what is left to read is at most the content of the pipe buffers.
+   */
+  private static final long OUTPUT_END_TIMEOUT = 10_000;
+
+  private final System2 system;
+  private final JazzRtcProcesses processes;
+
+  JazzRtcProcessExecutor(System2 system, JazzRtcProcesses processes) {
+    this.system = system;
+    this.processes = processes;
+  }
+
+  @Override
+  public int execute(Command cl, StreamConsumer stdout, StreamConsumer stderr, long timeoutMilliseconds) {
+    Process process = null;
+    StreamGobbler out = null;
+    StreamGobbler err = null;
+    try {
+      process = processes.start(processBuilder(cl));
+      process.getOutputStream().close();
+      out = new StreamGobbler(process, process.getInputStream(), stdout);
+      err = new StreamGobbler(process, process.getErrorStream(), stderr);
+      out.start();
+      err.start();
+      int exitCode = waitFor(cl, process, timeoutMilliseconds);
+      out.awaitEnd(cl);
+      err.awaitEnd(cl);
+      out.rethrow(cl);
+      err.rethrow(cl);
+      return exitCode;
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to execute [" + cl + "]", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while executing [" + cl + "]", e);
+    } finally {
+      if (process != null) {
+        processes.release(process);
+      }
+    }
+  }
+
+  @Override
+  public int executeToFile(Command cl, File stdout, StreamConsumer stderr, long timeoutMilliseconds) {
+    File errors = new File(stdout.getPath() + ".err");
+    ProcessBuilder builder = processBuilder(cl)
+      .redirectOutput(stdout)
+      .redirectError(errors);
+    Process process = null;
+    try {
+      process = processes.start(builder);
+      process.getOutputStream().close();
+      return waitFor(cl, process, timeoutMilliseconds);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to execute [" + cl + "]", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while executing [" + cl + "]", e);
+    } finally {
+      if (process != null) {
+        processes.release(process);
+      }
+      forward(errors, stderr);
+    }
+  }
+
+  private static int waitFor(Command cl, Process process, long timeoutMilliseconds) throws InterruptedException {
+    if (!process.waitFor(timeoutMilliseconds, TimeUnit.MILLISECONDS)) {
+      throw new TimeoutException(cl, "Timeout exceeded: " + timeoutMilliseconds + " ms [command: " + cl + "]", null);
+    }
+    return process.exitValue();
+  }
+
+  private ProcessBuilder processBuilder(Command cl) {
+    ProcessBuilder builder = new ProcessBuilder(commandLine(cl)).directory(cl.getDirectory());
+    builder.environment().putAll(cl.getEnvironmentVariables());
+    return builder;
+  }
+
+  /**
+   * Same command line as {@link org.sonar.api.utils.command.CommandExecutor}, which is not exposed by {@link Command}.
+   */
+  private List<String> commandLine(Command cl) {
+    List<String> commandLine = new ArrayList<>();
+    if (cl.isNewShell()) {
+      if (system.isOsWindows()) {
+        commandLine.add("cmd");
+        commandLine.add("/C");
+        commandLine.add("call");
+      } else {
+        commandLine.add("sh");
+      }
+    }
+    commandLine.add(cl.getExecutable());
+    commandLine.addAll(cl.getArguments());
+    return commandLine;
+  }
+
+  private static void forward(File errors, StreamConsumer stderr) {
+    if (!errors.isFile()) {
+      return;
+    }
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(errors), Charset.defaultCharset()))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        stderr.consumeLine(line);
+      }
+    } catch (IOException e) {
+      stderr.consumeLine("Unable to read " + errors + ": " + e.getMessage());
+    } finally {
+      errors.delete();
+    }
+  }
+
+  /**
+   * Reads an output of the process line by line. When the consumer fails, the process is stopped rather than left
+   * blocked on a full pipe until its timeout.
+   */
+  private static class StreamGobbler extends Thread {
+    private final Process process;
+    private final InputStream stream;
+    private final StreamConsumer consumer;
+    private volatile RuntimeException exception;
+
+    StreamGobbler(Process process, InputStream stream, StreamConsumer consumer) {
+      super("jazzrtc-gobbler");
+      setDaemon(true);
+      this.process = process;
+      this.stream = stream;
+      this.consumer = consumer;
+    }
+
+    @Override
+    public void run() {
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, Charset.defaultCharset()))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          consumer.consumeLine(line);
+        }
+      } catch (IOException e) {
+        // stream closed by the end of the process
+      } catch (RuntimeException e) {
+        exception = e;
+        process.destroyForcibly();
+      }
+    }
+
+    void awaitEnd(Command cl) throws InterruptedException {
+      join(OUTPUT_END_TIMEOUT);
+      if (isAlive()) {
+        throw new IllegalStateException("The output of [" + cl + "] is still open after its end, a process it started may be holding it");
+      }
+    }
+
+    void rethrow(Command cl) {
+      if (exception instanceof IllegalStateException) {
+        throw exception;
+      } else if (exception != null) {
+        throw new IllegalStateException("Unable to consume the output of [" + cl + "]", exception);
+      }
+    }
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * lscm processes started by the plugin. Every process is tagged with the process id of the scanner and a sequence
+ * number through an environment variable, inherited by the processes it starts itself. This way the processes an
+ * earlier scanner left behind can be recognized, and a process stopped because the blame failed, timed out or the
+ * scanner shuts down does not leave its own children running.
+ * <p>
+ * The lscm daemon inherits the tag of the command that started it, but it is shared by the later commands and
+ * analyses of the host and meant to outlive the scanner: it is never stopped nor reported.
+ */
+class JazzRtcProcesses {
+
+  private static final Logger LOG = Loggers.get(JazzRtcProcesses.class);
+
+  static final String OWNER_ENV = "SONAR_JAZZRTC_OWNER";
+  private static final byte[] OWNER_PREFIX = (OWNER_ENV + "=").getBytes(StandardCharsets.US_ASCII);
+  private static final List<String> DAEMON_FLAGS = Arrays.asList("-daemon", "--daemon");
+
+  private final String owner;
+  private final Path procDir;
+  private final AtomicLong sequence = new AtomicLong();
+  private final Map<Process, String> running = new ConcurrentHashMap<>();
+  private final AtomicBoolean shutdownHook = new AtomicBoolean();
+
+  JazzRtcProcesses() {
+    this(currentPid(), Paths.get("/proc"));
+  }
+
+  JazzRtcProcesses(String owner, Path procDir) {
+    this.owner = owner;
+    this.procDir = procDir;
+  }
+
+  /**
+   * "pid@hostname" on the usual JVMs, there is no portable way to get the process id before Java 9.
+   */
+  private static String currentPid() {
+    String name = ManagementFactory.getRuntimeMXBean().getName();
+    int at = name.indexOf('@');
+    return at > 0 ? name.substring(0, at) : name;
+  }
+
+  Process start(ProcessBuilder builder) throws IOException {
+    if (shutdownHook.compareAndSet(false, true)) {
+      Runtime.getRuntime().addShutdownHook(new Thread(this::cancelAll, "jazzrtc-reaper"));
+    }
+    String tag = owner + ":" + sequence.incrementAndGet();
+    builder.environment().put(OWNER_ENV, tag);
+    Process process = builder.start();
+    running.put(process, tag);
+    return process;
+  }
+
+  /**
+   * Stops the process if it is still running (timeout, interruption...), and forgets it.
+   */
+  void release(Process process) {
+    String tag = running.remove(process);
+    if (tag != null && process.isAlive()) {
+      stop(process, tag);
+    }
+  }
+
+  int runningCount() {
+    return running.size();
+  }
+
+  /**
+   * Stops all the processes still running.
+   *
+   * @return the number of processes stopped
+   */
+  int cancelAll() {
+    int cancelled = 0;
+    for (Process process : running.keySet()) {
+      String tag = running.remove(process);
+      if (tag != null && process.isAlive()) {
+        stop(process, tag);
+        cancelled++;
+      }
+    }
+    return cancelled;
+  }
+
+  private void stop(Process process, String tag) {
+    process.destroyForcibly();
+    // lscm is a script, the client it runs would otherwise keep running and holding the output of the process
+    for (Map.Entry<String, String> other : tags().entrySet()) {
+      if (tag.equals(other.getValue())) {
+        kill(other.getKey(), "-9");
+      }
+    }
+  }
+
+  /**
+   * Looks for processes started by a scanner which is not running anymore, only where <code>/proc</code> exposes
+   * the environment of the processes.
+   *
+   * @param terminate stops the orphans instead of only reporting them
+   */
+  void checkOrphans(boolean terminate) {
+    List<String> orphans = findOrphans();
+    if (orphans.isEmpty()) {
+      return;
+    }
+    if (!terminate) {
+      LOG.warn("{} lscm processes left by an earlier analysis are still running: {}. Set {} to stop them", orphans.size(), orphans,
+        JazzRtcConfiguration.TERMINATE_ORPHANS_PROP_KEY);
+      return;
+    }
+    for (String pid : orphans) {
+      if (kill(pid)) {
+        LOG.info("Stopped lscm process {} left by an earlier analysis", pid);
+      } else {
+        LOG.warn("Unable to stop lscm process {} left by an earlier analysis", pid);
+      }
+    }
+  }
+
+  List<String> findOrphans() {
+    List<String> orphans = new ArrayList<>();
+    for (Map.Entry<String, String> process : tags().entrySet()) {
+      String tag = process.getValue();
+      int separator = tag.indexOf(':');
+      String processOwner = separator >= 0 ? tag.substring(0, separator) : tag;
+      if (!processOwner.equals(owner) && isPid(processOwner) && !Files.exists(procDir.resolve(processOwner))) {
+        orphans.add(process.getKey());
+      }
+    }
+    return orphans;
+  }
+
+  /**
+   * @return the tag of every running lscm client process started by the plugin, by process id
+   */
+  private Map<String, String> tags() {
+    Map<String, String> tags = new TreeMap<>();
+    if (!Files.isDirectory(procDir)) {
+      return tags;
+    }
+    try (DirectoryStream<Path> processes = Files.newDirectoryStream(procDir, path -> isPid(path.getFileName().toString()))) {
+      for (Path process : processes) {
+        String tag = tag(process.resolve("environ"));
+        if (tag != null && !isDaemon(process.resolve("cmdline"))) {
+          tags.put(process.getFileName().toString(), tag);
+        }
+      }
+    } catch (IOException e) {
+      LOG.debug("Unable to list the running processes", e);
+    }
+    return tags;
+  }
+
+  private static boolean isPid(String name) {
+    return !name.isEmpty() && name.chars().allMatch(Character::isDigit);
+  }
+
+  /**
+   * @return the tag of the process, null if it was not started by the plugin or cannot be read
+   */
+  @CheckForNull
+  private static String tag(Path environ) {
+    byte[] environment;
+    try {
+      environment = Files.readAllBytes(environ);
+    } catch (IOException e) {
+      // other user, or process gone
+      return null;
+    }
+    // NUL separated KEY=value entries
+    int start = 0;
+    while (start < environment.length) {
+      int end = start;
+      while (end < environment.length && environment[end] != 0) {
+        end++;
+      }
+      if (startsWith(environment, start, end, OWNER_PREFIX)) {
+        return new String(environment, start + OWNER_PREFIX.length, end - start - OWNER_PREFIX.length, StandardCharsets.US_ASCII);
+      }
+      start = end + 1;
+    }
+    return null;
+  }
+
+  /**
+   * The daemon is started with <code>scm daemon start</code>, and runs with a <code>-daemon</code> option.
+   */
+  private static boolean isDaemon(Path cmdline) {
+    byte[] arguments;
+    try {
+      arguments = Files.readAllBytes(cmdline);
+    } catch (IOException e) {
+      // process gone, nothing to stop
+      return true;
+    }
+    // NUL separated arguments
+    String[] argv = new String(arguments, StandardCharsets.UTF_8).split("\0");
+    if (Arrays.stream(argv).anyMatch(DAEMON_FLAGS::contains)) {
+      return true;
+    }
+    // subcommand of the launcher: "scm daemon start", "java -jar scm.jar daemon start"
+    for (int i = 0; i < argv.length - 1; i++) {
+      if (isLauncher(argv[i])) {
+        return "daemon".equals(argv[i + 1]);
+      }
+    }
+    return false;
+  }
+
+  private static boolean isLauncher(String argument) {
+    String name = argument.substring(argument.lastIndexOf('/') + 1);
+    int extension = name.lastIndexOf('.');
+    if (extension > 0) {
+      name = name.substring(0, extension);
+    }
+    return "scm".equals(name) || "lscm".equals(name);
+  }
+
+  private static boolean startsWith(byte[] bytes, int from, int to, byte[] prefix) {
+    if (to - from < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (bytes[from + i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * There is no way to signal another process than a child before Java 9.
+   */
+  private static boolean kill(String pid, String... options) {
+    List<String> command = new ArrayList<>();
+    command.add("kill");
+    command.addAll(Arrays.asList(options));
+    command.add(pid);
+    try {
+      Process kill = new ProcessBuilder(command).redirectErrorStream(true).start();
+      return kill.waitFor(10, TimeUnit.SECONDS) && kill.exitValue() == 0;
+    } catch (IOException e) {
+      LOG.debug("Unable to stop process " + pid, e);
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+}
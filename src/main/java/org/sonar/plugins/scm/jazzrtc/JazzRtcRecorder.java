@@ -0,0 +1,229 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.StreamConsumer;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decorates an executor to save, for every lscm command, its raw output, exit code and latency to a compact archive
+ * that {@link JazzRtcReplayExecutor} can serve later on, without access to the Jazz server.
+ */
+class JazzRtcRecorder implements JazzRtcExecutor, Closeable {
+
+  private static final Logger LOG = Loggers.get(JazzRtcRecorder.class);
+
+  private static final int MAGIC = 0x4A525243;
+  private static final int VERSION = 2;
+  static final int TIMED_OUT = Integer.MIN_VALUE;
+
+  private static final List<String> CREDENTIAL_OPTIONS = Arrays.asList("-u", "-P", "--password-file");
+
+  private final JazzRtcExecutor delegate;
+  private final File file;
+  private final DataOutputStream out;
+  private int count;
+  private boolean failed;
+
+  JazzRtcRecorder(JazzRtcExecutor delegate, File file) throws IOException {
+    this.delegate = delegate;
+    this.file = file;
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Unable to create directory " + parent);
+    }
+    this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+  }
+
+  @Override
+  public int execute(Command cl, StreamConsumer stdout, StreamConsumer stderr, long timeoutMilliseconds) {
+    List<String> outLines = new ArrayList<>();
+    List<String> errLines = new ArrayList<>();
+    long start = System.nanoTime();
+    int exitCode = TIMED_OUT;
+    try {
+      exitCode = delegate.execute(cl, line -> {
+        outLines.add(line);
+        stdout.consumeLine(line);
+      }, line -> {
+        errLines.add(line);
+        stderr.consumeLine(line);
+      }, timeoutMilliseconds);
+      return exitCode;
+    } finally {
+      long latency = (System.nanoTime() - start) / 1_000_000;
+      write(new Recording(directory(cl), key(cl), exitCode, latency, outLines, errLines));
+    }
+  }
+
+  /**
+   * Never fails the command: the recording is only abandoned.
+   */
+  private synchronized void write(Recording recording) {
+    if (failed) {
+      return;
+    }
+    try {
+      out.writeBoolean(true);
+      writeString(out, recording.directory);
+      writeString(out, recording.key);
+      out.writeInt(recording.exitCode);
+      out.writeLong(recording.latency);
+      writeLines(recording.stdout);
+      writeLines(recording.stderr);
+      count++;
+    } catch (IOException e) {
+      failed = true;
+      LOG.warn("Unable to write recording to " + file + ", the next commands are not recorded", e);
+    }
+  }
+
+  private void writeLines(List<String> lines) throws IOException {
+    out.writeInt(lines.size());
+    for (String line : lines) {
+      writeString(out, line);
+    }
+  }
+
+  /**
+   * Unlike {@link DataOutputStream#writeUTF(String)}, not limited to 64 KB: JSON output comes on a single line.
+   */
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (!failed) {
+      out.writeBoolean(false);
+    }
+    out.close();
+    LOG.info("Recorded {} lscm commands to {}", count, file);
+  }
+
+  /**
+   * The same command run from two sandboxes has different outputs.
+   */
+  static String directory(Command cl) {
+    File directory = cl.getDirectory();
+    return directory != null ? directory.getAbsolutePath() : "";
+  }
+
+  /**
+   * Identifies a command independently of the machine it is run on: the arguments without the credentials.
+   */
+  static String key(Command cl) {
+    StringBuilder sb = new StringBuilder();
+    Iterator<String> args = cl.getArguments().iterator();
+    while (args.hasNext()) {
+      String arg = args.next();
+      if (CREDENTIAL_OPTIONS.contains(arg)) {
+        if (args.hasNext()) {
+          args.next();
+        }
+        continue;
+      }
+      if (sb.length() > 0) {
+        sb.append(' ');
+      }
+      sb.append(arg);
+    }
+    return sb.toString();
+  }
+
+  static List<Recording> read(File file) throws IOException {
+    List<Recording> recordings = new ArrayList<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a supported lscm recording: " + file);
+      }
+      try {
+        while (in.readBoolean()) {
+          recordings.add(new Recording(readString(in), readString(in), in.readInt(), in.readLong(), readLines(in), readLines(in)));
+        }
+      } catch (EOFException e) {
+        // recording of an interrupted analysis, keep what was completely written
+        LOG.warn("Recording {} is truncated, {} commands loaded", file, recordings.size());
+      }
+    }
+    return recordings;
+  }
+
+  private static List<String> readLines(DataInputStream in) throws IOException {
+    int size = in.readInt();
+    List<String> lines = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      lines.add(readString(in));
+    }
+    return lines;
+  }
+
+  static class Recording {
+    final String directory;
+    final String key;
+    final int exitCode;
+    final long latency;
+    final List<String> stdout;
+    final List<String> stderr;
+
+    Recording(String directory, String key, int exitCode, long latency, List<String> stdout, List<String> stderr) {
+      this.directory = directory;
+      this.key = key;
+      this.exitCode = exitCode;
+      this.latency = latency;
+      this.stdout = stdout;
+      this.stderr = stderr;
+    }
+
+    boolean timedOut() {
+      return exitCode == TIMED_OUT;
+    }
+  }
+}
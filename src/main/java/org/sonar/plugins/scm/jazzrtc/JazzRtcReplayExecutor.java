@@ -0,0 +1,102 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.StreamConsumer;
+import org.sonar.api.utils.command.TimeoutException;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves the commands saved by {@link JazzRtcRecorder} in place of lscm, with their original latency multiplied by
+ * a speed factor (0 replays as fast as possible). Commands are matched on their working directory and arguments. On
+ * another machine, where the sandboxes are elsewhere, a command is matched on its arguments only, provided it was
+ * recorded from a single directory.
+ */
+class JazzRtcReplayExecutor implements JazzRtcExecutor {
+
+  private static final Logger LOG = Loggers.get(JazzRtcReplayExecutor.class);
+  // "is not shared", so that files missing from the recording are skipped like untracked ones
+  private static final int NOT_RECORDED_EXIT_CODE = 30;
+
+  private final Map<String, JazzRtcRecorder.Recording> byDirectoryAndKey = new HashMap<>();
+  // null when recorded from several directories
+  private final Map<String, JazzRtcRecorder.Recording> byKey = new HashMap<>();
+  private final double timeScale;
+
+  JazzRtcReplayExecutor(List<JazzRtcRecorder.Recording> recordings, double timeScale) {
+    for (JazzRtcRecorder.Recording recording : recordings) {
+      byDirectoryAndKey.put(recording.directory + '\n' + recording.key, recording);
+      JazzRtcRecorder.Recording other = byKey.get(recording.key);
+      byKey.put(recording.key, byKey.containsKey(recording.key) && (other == null || !other.directory.equals(recording.directory)) ? null : recording);
+    }
+    this.timeScale = timeScale;
+  }
+
+  static JazzRtcReplayExecutor load(File file, double timeScale) {
+    try {
+      List<JazzRtcRecorder.Recording> recordings = JazzRtcRecorder.read(file);
+      LOG.info("Replaying {} lscm commands from {}", recordings.size(), file);
+      return new JazzRtcReplayExecutor(recordings, timeScale);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read lscm recording " + file, e);
+    }
+  }
+
+  @Override
+  public int execute(Command cl, StreamConsumer stdout, StreamConsumer stderr, long timeoutMilliseconds) {
+    String key = JazzRtcRecorder.key(cl);
+    JazzRtcRecorder.Recording recording = byDirectoryAndKey.get(JazzRtcRecorder.directory(cl) + '\n' + key);
+    if (recording == null) {
+      recording = byKey.get(key);
+    }
+    if (recording == null) {
+      LOG.warn("No recording for [{}]", key);
+      return NOT_RECORDED_EXIT_CODE;
+    }
+    long latency = (long) (recording.latency * timeScale);
+    if (recording.timedOut() || latency > timeoutMilliseconds) {
+      sleep(Math.min(latency, timeoutMilliseconds));
+      throw new TimeoutException(cl, "Timeout exceeded: " + timeoutMilliseconds + " ms [command: " + cl + "]", null);
+    }
+    sleep(latency);
+    recording.stdout.forEach(stdout::consumeLine);
+    recording.stderr.forEach(stderr::consumeLine);
+    return recording.exitCode;
+  }
+
+  private static void sleep(long millis) {
+    if (millis <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
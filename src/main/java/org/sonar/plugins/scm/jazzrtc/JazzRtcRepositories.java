@@ -0,0 +1,96 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import javax.annotation.Nullable;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routes the files to the repository their component is loaded from: first by the components configured for each
+ * repository, then by the repository URLs of the sandbox structure, listed once per sandbox.
+ */
+class JazzRtcRepositories {
+
+  private final JazzRtcBlameCommand lscm;
+  private final JazzRtcRepository defaults;
+  private final List<JazzRtcRepository> repositories;
+  private final boolean detect;
+  private final Map<Path, JazzRtcSandboxStructure> structures = new ConcurrentHashMap<>();
+
+  JazzRtcRepositories(JazzRtcBlameCommand lscm, JazzRtcRepository defaults, List<JazzRtcRepository> repositories) {
+    this.lscm = lscm;
+    this.defaults = defaults;
+    this.repositories = repositories;
+    this.detect = repositories.stream().anyMatch(repository -> repository.url() != null);
+  }
+
+  static JazzRtcRepositories of(JazzRtcBlameCommand lscm, JazzRtcConfiguration config) {
+    return new JazzRtcRepositories(lscm, JazzRtcRepository.defaults(config), JazzRtcRepository.configured(config));
+  }
+
+  boolean isEmpty() {
+    return repositories.isEmpty();
+  }
+
+  JazzRtcRepository defaults() {
+    return defaults;
+  }
+
+  /**
+   * @return the default repository, then the configured ones
+   */
+  List<JazzRtcRepository> all() {
+    List<JazzRtcRepository> all = new ArrayList<>(repositories.size() + 1);
+    all.add(defaults);
+    all.addAll(repositories);
+    return all;
+  }
+
+  /**
+   * @param sandboxRoot sandbox of the file, null if it is not in a sandbox
+   * @param componentRoot top level folder of the sandbox the file is in
+   */
+  JazzRtcRepository route(@Nullable Path sandboxRoot, @Nullable String componentRoot) {
+    if (sandboxRoot == null || componentRoot == null) {
+      return defaults;
+    }
+    for (JazzRtcRepository repository : repositories) {
+      if (repository.servesComponent(componentRoot)) {
+        return repository;
+      }
+    }
+    if (detect) {
+      String url = structures.computeIfAbsent(sandboxRoot, root -> JazzRtcSandboxStructure.of(lscm, root)).url(componentRoot);
+      if (url != null) {
+        for (JazzRtcRepository repository : repositories) {
+          if (repository.servesUrl(url)) {
+            return repository;
+          }
+        }
+      }
+    }
+    return defaults;
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Jazz RTC repository the files of some components are annotated from, with its own credentials, command timeout and
+ * number of concurrent annotates.
+ */
+class JazzRtcRepository {
+
+  static final String DEFAULT_ID = "default";
+
+  private final String id;
+  private final String url;
+  private final Pattern components;
+  private final String username;
+  private final String password;
+  private final String passwordFile;
+  private final long timeout;
+  private final int threads;
+
+  JazzRtcRepository(String id, @Nullable String url, @Nullable Pattern components, @Nullable String username, @Nullable String password,
+    @Nullable String passwordFile, long timeout, int threads) {
+    this.id = id;
+    this.url = url != null ? normalize(url) : null;
+    this.components = components;
+    this.username = username;
+    this.password = password;
+    this.passwordFile = passwordFile;
+    this.timeout = timeout;
+    this.threads = threads;
+  }
+
+  /**
+   * The repository of the files not routed anywhere else, using the global properties.
+   */
+  static JazzRtcRepository defaults(JazzRtcConfiguration config) {
+    return new JazzRtcRepository(DEFAULT_ID, null, null, config.username(), config.password(), config.passwordFile(), config.commandTimeout(), 1);
+  }
+
+  /**
+   * Repositories declared by <code>sonar.jazzrtc.repositories</code>. Their properties default to the global ones.
+   */
+  static List<JazzRtcRepository> configured(JazzRtcConfiguration config) {
+    List<JazzRtcRepository> repositories = new ArrayList<>();
+    String[] ids = config.repositories();
+    if (ids == null) {
+      return repositories;
+    }
+    for (String id : ids) {
+      String property = id.trim();
+      if (property.isEmpty()) {
+        continue;
+      }
+      String username = config.repositoryProperty(property, JazzRtcConfiguration.REPOSITORY_USER_SUFFIX);
+      String password = config.repositoryProperty(property, JazzRtcConfiguration.REPOSITORY_PASSWRD_SUFFIX);
+      String passwordFile = config.repositoryProperty(property, JazzRtcConfiguration.REPOSITORY_PASSWRD_FILE_SUFFIX);
+      String timeout = config.repositoryProperty(property, JazzRtcConfiguration.REPOSITORY_TIMEOUT_SUFFIX);
+      String threads = config.repositoryProperty(property, JazzRtcConfiguration.REPOSITORY_THREADS_SUFFIX);
+      repositories.add(new JazzRtcRepository(property,
+        config.repositoryProperty(property, JazzRtcConfiguration.REPOSITORY_URL_SUFFIX),
+        components(config.repositoryProperty(property, JazzRtcConfiguration.REPOSITORY_COMPONENTS_SUFFIX)),
+        username != null ? username : config.username(),
+        password != null ? password : config.password(),
+        passwordFile != null ? passwordFile : config.passwordFile(),
+        timeout != null ? positive(property, JazzRtcConfiguration.REPOSITORY_TIMEOUT_SUFFIX, timeout) : config.commandTimeout(),
+        threads != null ? (int) positive(property, JazzRtcConfiguration.REPOSITORY_THREADS_SUFFIX, threads) : 1));
+    }
+    return repositories;
+  }
+
+  String id() {
+    return id;
+  }
+
+  @CheckForNull
+  String url() {
+    return url;
+  }
+
+  @CheckForNull
+  String username() {
+    return username;
+  }
+
+  @CheckForNull
+  String password() {
+    return password;
+  }
+
+  @CheckForNull
+  String passwordFile() {
+    return passwordFile;
+  }
+
+  long timeout() {
+    return timeout;
+  }
+
+  int threads() {
+    return threads;
+  }
+
+  boolean hasCredentials() {
+    return username != null && (password != null || passwordFile != null);
+  }
+
+  /**
+   * @param componentRoot top level folder of the sandbox
+   */
+  boolean servesComponent(String componentRoot) {
+    return components != null && components.matcher(componentRoot).matches();
+  }
+
+  boolean servesUrl(String repositoryUrl) {
+    return url != null && url.equals(normalize(repositoryUrl));
+  }
+
+  static String normalize(String url) {
+    String normalized = url.trim().toLowerCase(Locale.ENGLISH);
+    while (normalized.endsWith("/")) {
+      normalized = normalized.substring(0, normalized.length() - 1);
+    }
+    return normalized;
+  }
+
+  /**
+   * @param patterns comma separated names of top level folders of the sandbox, * matching any characters
+   */
+  @CheckForNull
+  private static Pattern components(@Nullable String patterns) {
+    if (patterns == null) {
+      return null;
+    }
+    StringBuilder regex = new StringBuilder();
+    for (String pattern : patterns.split(",")) {
+      if (pattern.trim().isEmpty()) {
+        continue;
+      }
+      if (regex.length() > 0) {
+        regex.append('|');
+      }
+      for (String literal : pattern.trim().split("\\*", -1)) {
+        regex.append(Pattern.quote(literal)).append(".*");
+      }
+      regex.setLength(regex.length() - 2);
+    }
+    return regex.length() > 0 ? Pattern.compile(regex.toString()) : null;
+  }
+
+  private static long positive(String id, String suffix, String value) {
+    try {
+      long parsed = Long.parseLong(value.trim());
+      if (parsed > 0) {
+        return parsed;
+      }
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw new IllegalStateException("Property " + JazzRtcConfiguration.repositoryPropertyKey(id, suffix) + " must be a positive number: " + value);
+  }
+}
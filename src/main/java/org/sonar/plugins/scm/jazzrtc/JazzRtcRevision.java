@@ -0,0 +1,114 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.StringStreamConsumer;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Identifies the state of a sandbox: the last change set of each of the components loaded in it. The same identifier
+ * means the same files were loaded from Jazz RTC.
+ */
+class JazzRtcRevision {
+
+  private static final Logger LOG = Loggers.get(JazzRtcRevision.class);
+
+  private JazzRtcRevision() {
+    // only static methods
+  }
+
+  /**
+   * @return the UUID of the last change set for a single component, a SHA-1 of the last change set of every
+   * component otherwise, or null if the state could not be determined
+   */
+  @CheckForNull
+  static String of(JazzRtcBlameCommand lscm, Path sandboxRoot) {
+    // folders which are not loaded from Jazz RTC (build output, ...) do not count
+    Map<String, String> lastChangesets = new TreeMap<>();
+    for (String component : JazzRtcSandboxStructure.of(lscm, sandboxRoot).foldersByComponent().keySet()) {
+      String changeset = lastChangeset(lscm, sandboxRoot, component);
+      if (changeset == null) {
+        return null;
+      }
+      lastChangesets.put(component, changeset);
+    }
+    if (lastChangesets.isEmpty()) {
+      return null;
+    }
+    if (lastChangesets.size() == 1) {
+      String changeset = lastChangesets.values().iterator().next();
+      return changeset.isEmpty() ? null : changeset;
+    }
+    return sha1(lastChangesets);
+  }
+
+  /**
+   * @return the UUID of the last change set of the component, an empty string if it has none, or null if it could not
+   * be queried
+   */
+  @CheckForNull
+  private static String lastChangeset(JazzRtcBlameCommand lscm, Path sandboxRoot, String component) {
+    Command cl = lscm.command(sandboxRoot.toFile(), "list changesets", "-j", "-m", "1", "-C", component);
+    StringBuilder json = new StringBuilder();
+    StringStreamConsumer stderr = new StringStreamConsumer();
+    int exitCode = lscm.execute(cl, line -> json.append(line).append('\n'), stderr);
+    if (exitCode != 0) {
+      LOG.warn("Unable to get the last change set of component {}, the revision of the sandbox is unknown: {}", component, stderr.getOutput());
+      return null;
+    }
+    try {
+      List<JazzRtcHistoryBlame.Changeset> history = JazzRtcHistoryBlame.parseHistory(json.toString());
+      return history.isEmpty() ? "" : history.get(0).uuid;
+    } catch (IOException e) {
+      LOG.warn("Unable to parse the last change set of component " + component + ", the revision of the sandbox is unknown", e);
+      return null;
+    }
+  }
+
+  private static String sha1(Map<String, String> lastChangesets) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not available", e);
+    }
+    for (Map.Entry<String, String> entry : lastChangesets.entrySet()) {
+      digest.update((entry.getKey() + "=" + entry.getValue() + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.scanner.ScannerSide;
+
+import javax.annotation.CheckForNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Locates the Jazz sandbox (the directory holding the <code>.jazz5</code> metadata folder) of any file, and the
+ * component root folder it is loaded from. Every directory is resolved at most once per analysis, so that per-file
+ * lookups are a map access.
+ */
+@ScannerSide
+public class JazzRtcSandboxIndex {
+
+  static final String METADATA_DIR = ".jazz5";
+
+  private final Map<Path, Optional<Path>> sandboxRootByDir = new ConcurrentHashMap<>();
+
+  @CheckForNull
+  public Path sandboxRoot(Path dir) {
+    Path absolute = dir.toAbsolutePath().normalize();
+    Optional<Path> cached = sandboxRootByDir.get(absolute);
+    if (cached != null) {
+      return cached.orElse(null);
+    }
+    // walk up until a known directory or the sandbox root, then remember the answer for every visited directory
+    List<Path> visited = new ArrayList<>();
+    Optional<Path> root = Optional.empty();
+    for (Path current = absolute; current != null; current = current.getParent()) {
+      Optional<Path> known = sandboxRootByDir.get(current);
+      if (known != null) {
+        root = known;
+        break;
+      }
+      visited.add(current);
+      if (Files.isDirectory(current.resolve(METADATA_DIR))) {
+        root = Optional.of(current);
+        break;
+      }
+    }
+    for (Path path : visited) {
+      sandboxRootByDir.put(path, root);
+    }
+    return root.orElse(null);
+  }
+
+  /**
+   * @return the path of the file relative to its sandbox root, or null if the file is not in a sandbox
+   */
+  @CheckForNull
+  public Path relativePath(Path file) {
+    Path absolute = file.toAbsolutePath().normalize();
+    Path parent = absolute.getParent();
+    Path root = parent != null ? sandboxRoot(parent) : null;
+    return root != null ? root.relativize(absolute) : null;
+  }
+
+  /**
+   * Files of a sandbox are loaded below the root folders of the components, which are the top level directories of
+   * the sandbox.
+   *
+   * @return the component root folder of the file, relative to the sandbox root, or null if the file is not in one
+   */
+  @CheckForNull
+  public String componentRoot(Path file) {
+    Path relative = relativePath(file);
+    if (relative == null || relative.getNameCount() < 2) {
+      return null;
+    }
+    return relative.getName(0).toString();
+  }
+}
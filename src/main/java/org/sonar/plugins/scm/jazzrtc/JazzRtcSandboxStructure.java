@@ -0,0 +1,215 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.utils.command.StringStreamConsumer;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Top level folders of a sandbox as loaded by Jazz RTC, from <code>lscm show sandbox-structure -j</code>: the
+ * component each folder is loaded from, and the URL of its repository. Folders of the sandbox which are not listed
+ * (build output, ...) are not loaded from Jazz RTC.
+ */
+class JazzRtcSandboxStructure {
+
+  private static final Logger LOG = Loggers.get(JazzRtcSandboxStructure.class);
+
+  static final JazzRtcSandboxStructure EMPTY = new JazzRtcSandboxStructure(Collections.<String, Folder>emptyMap());
+
+  private final Map<String, Folder> folders;
+
+  private JazzRtcSandboxStructure(Map<String, Folder> folders) {
+    this.folders = folders;
+  }
+
+  private static class Folder {
+    private String component;
+    private String url;
+  }
+
+  /**
+   * @return the structure of the sandbox, or {@link #EMPTY} if it cannot be listed
+   */
+  static JazzRtcSandboxStructure of(JazzRtcBlameCommand lscm, Path sandboxRoot) {
+    StringBuilder json = new StringBuilder();
+    StringStreamConsumer stderr = new StringStreamConsumer();
+    try {
+      int exitCode = lscm.execute(lscm.command(sandboxRoot.toFile(), "show sandbox-structure", "-j"), line -> json.append(line).append('\n'), stderr);
+      if (exitCode != 0) {
+        LOG.warn("Unable to get the structure of sandbox {}: {}", sandboxRoot, stderr.getOutput());
+        return EMPTY;
+      }
+      JazzRtcSandboxStructure structure = parse(json.toString());
+      LOG.debug("Structure of sandbox {}: {}", sandboxRoot, structure);
+      return structure;
+    } catch (IllegalStateException | IOException e) {
+      LOG.warn("Unable to get the structure of sandbox " + sandboxRoot, e);
+      return EMPTY;
+    }
+  }
+
+  boolean isEmpty() {
+    return folders.isEmpty();
+  }
+
+  /**
+   * @return the UUID (or name, for older clients) of the component the top level folder is loaded from, null if the
+   * folder is not loaded from Jazz RTC
+   */
+  @CheckForNull
+  String component(String folder) {
+    Folder loaded = folders.get(folder);
+    return loaded != null ? loaded.component : null;
+  }
+
+  /**
+   * @return the URL of the repository the top level folder is loaded from, null if not known
+   */
+  @CheckForNull
+  String url(String folder) {
+    Folder loaded = folders.get(folder);
+    return loaded != null ? loaded.url : null;
+  }
+
+  /**
+   * @return the loaded components, with their top level folders
+   */
+  Map<String, List<String>> foldersByComponent() {
+    Map<String, List<String>> components = new TreeMap<>();
+    folders.forEach((name, folder) -> {
+      if (folder.component != null) {
+        components.computeIfAbsent(folder.component, k -> new ArrayList<>()).add(name);
+      }
+    });
+    return components;
+  }
+
+  /**
+   * Whatever the nesting of workspaces and components: every folder <code>path</code> is loaded from the closest
+   * enclosing object declaring a <code>uuid</code> or <code>name</code>, and belongs to the repository
+   * <code>url</code> of the closest object declaring one.
+   */
+  static JazzRtcSandboxStructure parse(String json) throws IOException {
+    Map<String, Folder> folders = new LinkedHashMap<>();
+    readValue(new JazzRtcJsonReader(new StringReader(json)), folders);
+    return new JazzRtcSandboxStructure(folders);
+  }
+
+  /**
+   * @return the folders of the value whose component or repository is not known yet
+   */
+  private static List<Folder> readValue(JazzRtcJsonReader reader, Map<String, Folder> folders) throws IOException {
+    List<Folder> pending = new ArrayList<>();
+    JazzRtcJsonReader.Token token = reader.peek();
+    if (token == JazzRtcJsonReader.Token.BEGIN_ARRAY) {
+      reader.beginArray();
+      while (reader.hasNext()) {
+        pending.addAll(readValue(reader, folders));
+      }
+      reader.endArray();
+    } else if (token == JazzRtcJsonReader.Token.BEGIN_OBJECT) {
+      readObject(reader, folders, pending);
+    } else {
+      reader.skipValue();
+    }
+    return pending;
+  }
+
+  private static void readObject(JazzRtcJsonReader reader, Map<String, Folder> folders, List<Folder> pending) throws IOException {
+    String url = null;
+    String uuid = null;
+    String name = null;
+    Folder own = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String key = reader.nextName();
+      JazzRtcJsonReader.Token next = reader.peek();
+      if (next == JazzRtcJsonReader.Token.BEGIN_ARRAY || next == JazzRtcJsonReader.Token.BEGIN_OBJECT) {
+        pending.addAll(readValue(reader, folders));
+      } else if ("url".equals(key) || "repository-url".equals(key)) {
+        url = reader.nextString();
+      } else if ("uuid".equals(key)) {
+        uuid = reader.nextString();
+      } else if ("name".equals(key)) {
+        name = reader.nextString();
+      } else if ("path".equals(key) || "root-folder".equals(key)) {
+        String folder = topLevelFolder(reader.nextString());
+        if (folder != null) {
+          own = folders.computeIfAbsent(folder, k -> new Folder());
+        }
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (own != null) {
+      // the name and uuid of a folder object are the folder's
+      if (own.url == null) {
+        own.url = url;
+      }
+      pending.add(own);
+      return;
+    }
+    String component = uuid != null ? uuid : name;
+    for (Folder folder : pending) {
+      if (folder.url == null) {
+        folder.url = url;
+      }
+      if (folder.component == null) {
+        folder.component = component;
+      }
+    }
+    pending.removeIf(folder -> folder.url != null && folder.component != null);
+  }
+
+  @CheckForNull
+  private static String topLevelFolder(@Nullable String path) {
+    if (path == null) {
+      return null;
+    }
+    for (String segment : path.replace('\\', '/').split("/")) {
+      if (!segment.isEmpty()) {
+        return segment;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("{");
+    folders.forEach((name, folder) -> sb.append(sb.length() > 1 ? ", " : "").append(name).append('=').append(folder.component).append('@').append(folder.url));
+    return sb.append('}').toString();
+  }
+}
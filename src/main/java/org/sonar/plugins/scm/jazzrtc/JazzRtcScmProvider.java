@@ -20,16 +20,26 @@
 package org.sonar.plugins.scm.jazzrtc;
 
 import org.sonar.api.batch.scm.BlameCommand;
+import org.sonar.api.batch.scm.IgnoreCommand;
 import org.sonar.api.batch.scm.ScmProvider;
 
+import javax.annotation.CheckForNull;
+
 import java.io.File;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class JazzRtcScmProvider extends ScmProvider {
 
   private final JazzRtcBlameCommand blameCommand;
+  private final JazzRtcSandboxIndex sandboxIndex;
+  private final Map<Path, Optional<String>> revisionBySandbox = new ConcurrentHashMap<>();
 
-  public JazzRtcScmProvider(JazzRtcBlameCommand blameCommand) {
+  public JazzRtcScmProvider(JazzRtcBlameCommand blameCommand, JazzRtcSandboxIndex sandboxIndex) {
     this.blameCommand = blameCommand;
+    this.sandboxIndex = sandboxIndex;
   }
 
   @Override
@@ -39,11 +49,39 @@ public class JazzRtcScmProvider extends ScmProvider {
 
   @Override
   public boolean supports(File baseDir) {
-    return new File(baseDir, ".jazz5").exists();
+    // the project can be a module nested in the sandbox
+    return sandboxIndex.sandboxRoot(baseDir.toPath()) != null;
   }
 
   @Override
   public BlameCommand blameCommand() {
     return this.blameCommand;
   }
+
+  @Override
+  public IgnoreCommand ignoreCommand() {
+    return new JazzRtcIgnoreCommand(sandboxIndex);
+  }
+
+  /**
+   * @return null outside of a sandbox
+   */
+  @CheckForNull
+  @Override
+  public Path relativePathFromScmRoot(Path path) {
+    return sandboxIndex.relativePath(path);
+  }
+
+  /**
+   * Queried once per sandbox and analysis, see {@link JazzRtcRevision}.
+   */
+  @CheckForNull
+  @Override
+  public String revisionId(Path path) {
+    Path sandboxRoot = sandboxIndex.sandboxRoot(path);
+    if (sandboxRoot == null) {
+      return null;
+    }
+    return revisionBySandbox.computeIfAbsent(sandboxRoot, root -> Optional.ofNullable(JazzRtcRevision.of(blameCommand, root))).orElse(null);
+  }
 }
@@ -0,0 +1,200 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Unified diff of a change set, as printed by <code>lscm diff changeset</code>. Only the shape of the hunks is kept
+ * (which lines are kept, removed or added), never their content.
+ */
+class JazzRtcUnifiedDiff {
+
+  private static final String DEV_NULL = "/dev/null";
+  private static final Pattern HUNK_HEADER = Pattern.compile("@@ -(\\d+)(?:,(\\d+))? \\+(\\d+)(?:,(\\d+))? @@.*");
+
+  static final char KEPT = ' ';
+  static final char REMOVED = '-';
+  static final char ADDED = '+';
+
+  private JazzRtcUnifiedDiff() {
+    // only static methods
+  }
+
+  static class FileDiff {
+    final boolean deleted;
+    final List<Hunk> hunks = new ArrayList<>();
+
+    FileDiff(boolean deleted) {
+      this.deleted = deleted;
+    }
+  }
+
+  static class Hunk {
+    final int oldStart;
+    final int oldCount;
+    final char[] ops;
+
+    Hunk(int oldStart, int oldCount, char[] ops) {
+      this.oldStart = oldStart;
+      this.oldCount = oldCount;
+      this.ops = ops;
+    }
+  }
+
+  /**
+   * @return the changes of each file, keyed by path relative to the sandbox root
+   */
+  static Map<String, FileDiff> parse(List<String> lines) {
+    Map<String, FileDiff> files = new LinkedHashMap<>();
+    FileDiff current = null;
+    String oldPath = null;
+    int i = 0;
+    while (i < lines.size()) {
+      String line = lines.get(i++);
+      if (line.startsWith("--- ")) {
+        oldPath = path(line);
+      } else if (line.startsWith("+++ ") && oldPath != null) {
+        String newPath = path(line);
+        boolean deleted = DEV_NULL.equals(newPath);
+        current = new FileDiff(deleted);
+        files.put(normalize(deleted ? oldPath : newPath), current);
+        oldPath = null;
+      } else if (current != null) {
+        Matcher matcher = HUNK_HEADER.matcher(line);
+        if (matcher.matches()) {
+          int oldCount = count(matcher.group(2));
+          int newCount = count(matcher.group(4));
+          char[] ops = new char[Math.max(oldCount, 0) + Math.max(newCount, 0)];
+          int size = 0;
+          // content lines can look like headers, so consume exactly what the hunk header announces
+          while ((oldCount > 0 || newCount > 0) && i < lines.size()) {
+            String content = lines.get(i++);
+            char op = content.isEmpty() ? KEPT : content.charAt(0);
+            if (op == '\\') {
+              // "\ No newline at end of file"
+              continue;
+            }
+            if (op != REMOVED) {
+              newCount--;
+            }
+            if (op != ADDED) {
+              oldCount--;
+            }
+            ops[size++] = op == REMOVED || op == ADDED ? op : KEPT;
+          }
+          current.hunks.add(new Hunk(Integer.parseInt(matcher.group(1)), count(matcher.group(2)), size == ops.length ? ops : Arrays.copyOf(ops, size)));
+        }
+      }
+    }
+    return files;
+  }
+
+  private static int count(String group) {
+    return group == null ? 1 : Integer.parseInt(group);
+  }
+
+  private static String path(String header) {
+    String path = header.substring(4);
+    int tab = path.indexOf('\t');
+    if (tab >= 0) {
+      path = path.substring(0, tab);
+    }
+    path = path.trim();
+    if (path.length() > 1 && path.startsWith("\"") && path.endsWith("\"")) {
+      path = path.substring(1, path.length() - 1);
+    }
+    return path;
+  }
+
+  private static String normalize(String path) {
+    String normalized = path.replace('\\', '/');
+    if (normalized.startsWith("a/") || normalized.startsWith("b/")) {
+      normalized = normalized.substring(2);
+    }
+    while (normalized.startsWith("/")) {
+      normalized = normalized.substring(1);
+    }
+    return normalized;
+  }
+
+  /**
+   * Applies the hunks of a change set to the attribution of a file: kept lines keep their origin, added lines are
+   * attributed to the given change set.
+   *
+   * @param origins change set of every line before the change, null if the file did not exist
+   * @return the origins after the change, or null if the diff does not apply (history not complete for this file)
+   */
+  @CheckForNull
+  static int[] apply(@Nullable int[] origins, List<Hunk> hunks, int changeset) {
+    int[] before = origins != null ? origins : new int[0];
+    int removed = 0;
+    int added = 0;
+    for (Hunk hunk : hunks) {
+      for (char op : hunk.ops) {
+        if (op == REMOVED) {
+          removed++;
+        } else if (op == ADDED) {
+          added++;
+        }
+      }
+    }
+    int size = before.length - removed + added;
+    if (size < 0) {
+      return null;
+    }
+    int[] after = new int[size];
+    int from = 0;
+    int to = 0;
+    for (Hunk hunk : hunks) {
+      // "-l,0" inserts after line l, otherwise the hunk starts at line l
+      int start = hunk.oldCount == 0 ? hunk.oldStart : (hunk.oldStart - 1);
+      if (start < from || start > before.length) {
+        return null;
+      }
+      int unchanged = start - from;
+      System.arraycopy(before, from, after, to, unchanged);
+      from += unchanged;
+      to += unchanged;
+      for (char op : hunk.ops) {
+        if (op == ADDED) {
+          after[to++] = changeset;
+        } else if (from >= before.length) {
+          return null;
+        } else if (op == REMOVED) {
+          from++;
+        } else {
+          after[to++] = before[from++];
+        }
+      }
+    }
+    System.arraycopy(before, from, after, to, before.length - from);
+    return after;
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.scm.BlameLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class JazzRtcAuthorsTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void testParseWrappedOutput() throws IOException {
+    List<JazzRtcAuthors.Contributor> contributors = JazzRtcAuthors.parse("{\"users\": [{\"name\": \"Julien HENRY\", \"user-id\": \"jhenry\", "
+      + "\"emailAddress\": \"julien.henry@sonarsource.com\", \"archived\": false, \"roles\": [\"dev\"]}]}");
+    assertThat(contributors).hasSize(1);
+    assertThat(contributors.get(0).id).isEqualTo("jhenry");
+    assertThat(contributors.get(0).name).isEqualTo("Julien HENRY");
+    assertThat(contributors.get(0).email).isEqualTo("julien.henry@sonarsource.com");
+  }
+
+  @Test
+  public void testUserIdIsPreferredToItemId() throws IOException {
+    List<JazzRtcAuthors.Contributor> contributors = JazzRtcAuthors.parse("[{\"userId\": \"jhenry\", \"id\": \"_Ab12\", \"name\": \"Julien HENRY\"},"
+      + " {\"id\": \"_Cd34\", \"user-id\": \"dgageot\"}, {\"id\": \"_Ef56\", \"name\": \"Build\"}]");
+    assertThat(contributors).extracting("id").containsExactly("jhenry", "dgageot", "_Ef56");
+  }
+
+  @Test
+  public void testSharedLinesStayShared() {
+    JazzRtcAuthors authors = new JazzRtcAuthors(Collections.singletonMap(JazzRtcRepository.DEFAULT_ID, Collections.singletonMap("Julien HENRY", "jhenry")));
+    BlameLine line = new BlameLine().date(new Date()).revision("1000").author("Julien HENRY");
+    List<BlameLine> mapped = authors.map(repository(JazzRtcRepository.DEFAULT_ID), Arrays.asList(line, line));
+    assertThat(mapped.get(0).author()).isEqualTo("jhenry");
+    assertThat(mapped.get(0).revision()).isEqualTo("1000");
+    assertThat(mapped.get(1)).isSameAs(mapped.get(0));
+    // the original blame may be cached, it is not changed
+    assertThat(line.author()).isEqualTo("Julien HENRY");
+  }
+
+  @Test
+  public void testReadWrite() throws IOException {
+    File file = new File(temp.newFolder(), JazzRtcAuthors.FILENAME);
+    JazzRtcAuthors.write(file, Arrays.asList(new JazzRtcAuthors.Contributor("jhenry", "Julien HENRY", null)), 1000L);
+    assertThat(JazzRtcAuthors.read(file, 1001L)).isNull();
+    List<JazzRtcAuthors.Contributor> contributors = JazzRtcAuthors.read(file, 1000L);
+    assertThat(contributors).hasSize(1);
+    assertThat(contributors.get(0).id).isEqualTo("jhenry");
+    assertThat(contributors.get(0).email).isNull();
+  }
+
+  @Test
+  public void testAmbiguousNamesAreNotMapped() {
+    Map<String, String> byName = JazzRtcAuthors.byName("default", Arrays.asList(
+      new JazzRtcAuthors.Contributor("jdoe", "John Doe", null),
+      new JazzRtcAuthors.Contributor("jhenry", "Julien HENRY", null),
+      new JazzRtcAuthors.Contributor("jdoe2", "John Doe", null),
+      new JazzRtcAuthors.Contributor("jdoe3", "John Doe", null),
+      new JazzRtcAuthors.Contributor("jhenry", "Julien HENRY", "julien.henry@sonarsource.com")), JazzRtcConfiguration.AUTHOR_ID);
+    assertThat(byName).containsOnly(entry("Julien HENRY", "jhenry"));
+  }
+
+  @Test
+  public void testMappedWithTheContributorsOfTheRepository() {
+    Map<String, Map<String, String>> byRepository = new HashMap<>();
+    byRepository.put("first", Collections.singletonMap("John Doe", "jdoe"));
+    byRepository.put("second", Collections.singletonMap("John Doe", "john.doe"));
+    JazzRtcAuthors authors = new JazzRtcAuthors(byRepository);
+    List<BlameLine> lines = Collections.singletonList(new BlameLine().date(new Date()).revision("1000").author("John Doe"));
+
+    assertThat(authors.map(repository("first"), lines)).extracting("author").containsExactly("jdoe");
+    assertThat(authors.map(repository("second"), lines)).extracting("author").containsExactly("john.doe");
+    assertThat(authors.map(repository("third"), lines)).isSameAs(lines);
+  }
+
+  @Test
+  public void testCacheFileByRepository() {
+    assertThat(JazzRtcAuthors.filename(repository(JazzRtcRepository.DEFAULT_ID))).isEqualTo(JazzRtcAuthors.FILENAME);
+    assertThat(JazzRtcAuthors.filename(repository("first"))).isEqualTo("authors.first.cache");
+  }
+
+  private static JazzRtcRepository repository(String id) {
+    return new JazzRtcRepository(id, null, null, null, null, null, 1000, 1);
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.scm.BlameLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JazzRtcBlameCacheTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void testMatchUnchangedLines() {
+    assertThat(JazzRtcBlameCache.matchLines(new long[] {1, 2, 3}, new long[] {1, 2, 3}, 10)).containsExactly(0, 1, 2);
+  }
+
+  @Test
+  public void testMatchInsertedAndDeletedLines() {
+    long[] previous = {1, 2, 3, 4, 5, 6};
+    long[] current = {1, 9, 2, 4, 5, 8, 6};
+
+    assertThat(JazzRtcBlameCache.matchLines(previous, current, 10)).containsExactly(0, -1, 1, 3, 4, -1, 5);
+  }
+
+  @Test
+  public void testMatchMovedBlock() {
+    long[] previous = {1, 2, 3, 4, 5};
+    long[] current = {4, 5, 1, 2, 3};
+
+    assertThat(JazzRtcBlameCache.matchLines(previous, current, 10)).containsExactly(-1, -1, 0, 1, 2);
+  }
+
+  @Test
+  public void testTooManyEdits() {
+    long[] previous = {1, 2, 3, 4, 5, 6};
+    long[] current = {7, 8, 9, 10, 11, 12};
+
+    assertThat(JazzRtcBlameCache.matchLines(previous, current, 4)).isNull();
+    assertThat(JazzRtcBlameCache.matchLines(previous, current, 12)).containsOnly(-1);
+  }
+
+  @Test
+  public void testMatchEmptyContent() {
+    assertThat(JazzRtcBlameCache.matchLines(new long[0], new long[] {1, 2}, 10)).containsExactly(-1, -1);
+    assertThat(JazzRtcBlameCache.matchLines(new long[] {1, 2}, new long[0], 10)).isEmpty();
+  }
+
+  @Test
+  public void testChangeWithSameStringHashIsNotServed() {
+    // "Aa" and "BB" have the same String#hashCode
+    assertThat(JazzRtcBlameCache.lineHashes("Aa")).isNotEqualTo(JazzRtcBlameCache.lineHashes("BB"));
+    Map<String, JazzRtcBlameStore.Entry> entries = new HashMap<>();
+    entries.put("foo.txt", entry("Aa\nfoo"));
+    JazzRtcBlameCache cache = new JazzRtcBlameCache(new File(temp.getRoot(), "blame.cache"), entries, new BlameLine());
+
+    assertThat(cache.get("foo.txt", JazzRtcBlameCache.content("Aa\nfoo"), false)).hasSize(2);
+    assertThat(cache.get("foo.txt", JazzRtcBlameCache.content("BB\nfoo"), false)).isNull();
+  }
+
+  @Test
+  public void testEvictDeletedFiles() throws IOException {
+    File root = temp.newFolder();
+    FileUtils.write(new File(root, "src/kept.txt"), "foo", StandardCharsets.UTF_8);
+    Map<String, JazzRtcBlameStore.Entry> entries = new HashMap<>();
+    entries.put("src/kept.txt", entry("foo"));
+    entries.put("src/deleted.txt", entry("foo"));
+    File file = new File(temp.getRoot(), "blame.cache");
+    JazzRtcBlameCache cache = new JazzRtcBlameCache(file, entries, new BlameLine());
+
+    cache.evictMissing(Collections.<File>emptyList());
+    cache.save();
+    assertThat(JazzRtcBlameStore.read(file)).containsOnlyKeys("src/kept.txt", "src/deleted.txt");
+    cache.evictMissing(Collections.singleton(root));
+    cache.save();
+    assertThat(JazzRtcBlameStore.read(file)).containsOnlyKeys("src/kept.txt");
+  }
+
+  private static JazzRtcBlameStore.Entry entry(String content) {
+    JazzRtcBlameCache.Content parsed = JazzRtcBlameCache.content(content);
+    BlameLine line = new BlameLine().date(new Date(0)).revision("1000").author("Julien HENRY");
+    List<BlameLine> lines = Arrays.asList(new BlameLine[parsed.lineHashes.length]);
+    Collections.fill(lines, line);
+    return new JazzRtcBlameStore.Entry(lines, parsed.lineHashes, parsed.digest, false);
+  }
+}
@@ -0,0 +1,335 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultFileSystem;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+import org.sonar.api.batch.scm.BlameCommand.BlameInput;
+import org.sonar.api.batch.scm.BlameCommand.BlameOutput;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Blames many synthetic files against a simulated Jazz RTC server, and records the throughput, the peak heap and the
+ * failures of every scenario. The defaults keep the suite short enough for every build, run it with
+ * <code>-Djazzrtc.soak.files=20000 -Djazzrtc.soak.report=target/jazzrtc-soak.csv</code> for a real soak.
+ */
+public class JazzRtcBlameCommandSoakTest {
+
+  private static final Logger LOG = Loggers.get(JazzRtcBlameCommandSoakTest.class);
+
+  private static final int FILES = Integer.getInteger("jazzrtc.soak.files", 200);
+  private static final long SEED = Long.getLong("jazzrtc.soak.seed", 42L);
+  // no report unless requested
+  private static final String REPORT = System.getProperty("jazzrtc.soak.report");
+  private static final List<String> results = Collections.synchronizedList(new ArrayList<>());
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private File sandbox;
+  private MapSettings settings;
+  private Random random;
+
+  @Before
+  public void prepare() throws IOException {
+    sandbox = temp.newFolder();
+    new File(sandbox, JazzRtcSandboxIndex.METADATA_DIR).mkdir();
+    settings = new MapSettings(new PropertyDefinitions(JazzRtcConfiguration.getProperties()));
+    settings.setProperty(JazzRtcConfiguration.ANNOTATE_FORMAT_PROP_KEY, JazzRtcConfiguration.TEXT_FORMAT);
+    random = new Random(SEED);
+  }
+
+  @AfterClass
+  public static void writeReport() throws IOException {
+    if (REPORT == null) {
+      return;
+    }
+    List<String> lines = new ArrayList<>();
+    lines.add("scenario,files,seconds,files/s,peak heap MB,commands,untracked,errors,timeouts,peak in flight");
+    lines.addAll(results);
+    File report = new File(REPORT);
+    File dir = report.getAbsoluteFile().getParentFile();
+    if (dir.isDirectory() || dir.mkdirs()) {
+      Files.write(report.toPath(), lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+  }
+
+  @Test
+  public void testThroughputAndMemory() {
+    JazzRtcFakeLscm lscm = new JazzRtcFakeLscm(SEED);
+    Scan scan = new Scan("throughput", lscm, files(lscm, FILES, 1, 200));
+
+    scan.run(command(lscm));
+
+    assertThat(scan.blamed.size()).isEqualTo(FILES);
+    assertThat(lscm.annotated.get()).isEqualTo(FILES);
+    // one command per file, and one at a time for the default repository
+    assertThat(lscm.commands.get()).isEqualTo(FILES);
+    assertThat(lscm.peakInFlight.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testUntrackedFilesAreSkipped() {
+    JazzRtcFakeLscm lscm = new JazzRtcFakeLscm(SEED).untrackedRate(0.2);
+    Scan scan = new Scan("untracked", lscm, files(lscm, FILES, 1, 50));
+
+    scan.run(command(lscm));
+
+    assertThat(lscm.untracked.get()).isGreaterThan(0);
+    assertThat(scan.blamed.size()).isEqualTo(FILES - lscm.untracked.get());
+    // untracked files are not retried
+    assertThat(lscm.commands.get()).isEqualTo(FILES);
+  }
+
+  @Test
+  public void testServerErrorsFailTheBlame() {
+    JazzRtcFakeLscm lscm = new JazzRtcFakeLscm(SEED).errorRate(0.05);
+    Scan scan = new Scan("server errors", lscm, files(lscm, FILES, 1, 50));
+
+    try {
+      scan.run(command(lscm));
+      fail("Expected the blame to fail");
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage()).contains("Server is too busy");
+    }
+    assertThat(lscm.errors.get()).isEqualTo(1);
+    assertThat(scan.blamed.size()).isEqualTo(lscm.annotated.get());
+  }
+
+  @Test
+  public void testSlowCommandsTimeOut() {
+    settings.setProperty(JazzRtcConfiguration.CMD_TIMEOUT_PROP_KEY, "50");
+    JazzRtcFakeLscm lscm = new JazzRtcFakeLscm(SEED).latency(JazzRtcFakeLscm.exponential(random, 20));
+    Scan scan = new Scan("timeouts", lscm, files(lscm, FILES, 1, 50));
+
+    try {
+      scan.run(command(lscm));
+      fail("Expected the blame to time out");
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage()).contains("timed out");
+    }
+    assertThat(lscm.timeouts.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testBudgetPostponesTheFilesLeft() throws IOException {
+    File cacheDir = temp.newFolder();
+    settings.setProperty(JazzRtcConfiguration.BUDGET_PROP_KEY, "500");
+    settings.setProperty(JazzRtcConfiguration.CACHE_DIR_PROP_KEY, cacheDir.getAbsolutePath());
+    // simulated latencies, the budget lasts for dozens of them whatever the speed of the machine
+    JazzRtcFakeLscm lscm = new JazzRtcFakeLscm(SEED).simulatedTime().latency(JazzRtcFakeLscm.uniform(random, 5, 15));
+    Scan scan = new Scan("budget", lscm, filesOnDisk(lscm, FILES, 50));
+
+    scan.run(command(lscm, lscm.system()));
+
+    assertThat(scan.blamed.size()).isBetween(500 / 15, 500 / 5);
+    List<String> pending = Files.readAllLines(new File(cacheDir, JazzRtcBlameBudget.PENDING_FILENAME).toPath(), StandardCharsets.UTF_8);
+    assertThat(pending.size()).isEqualTo(FILES - scan.blamed.size());
+    // nothing is started once the budget is spent: every command blamed its file, but the one cut by the end of the budget
+    assertThat(lscm.annotated.get()).isEqualTo(scan.blamed.size());
+    assertThat(lscm.timeouts.get()).isLessThanOrEqualTo(1);
+    assertThat(lscm.commands.get()).isEqualTo(lscm.annotated.get() + lscm.timeouts.get());
+  }
+
+  @Test
+  public void testSaturatedServerQueuesTheAnnotates() {
+    settings.setProperty(JazzRtcConfiguration.REPOSITORIES_PROP_KEY, "pool");
+    settings.setProperty(JazzRtcConfiguration.repositoryPropertyKey("pool", JazzRtcConfiguration.REPOSITORY_COMPONENTS_SUFFIX), "comp*");
+    settings.setProperty(JazzRtcConfiguration.repositoryPropertyKey("pool", JazzRtcConfiguration.REPOSITORY_THREADS_SUFFIX), "8");
+    JazzRtcFakeLscm lscm = new JazzRtcFakeLscm(SEED).capacity(3).latency(JazzRtcFakeLscm.uniform(random, 1, 4));
+    Scan scan = new Scan("saturation", lscm, files(lscm, FILES / 2, 1, 50));
+
+    scan.run(command(lscm));
+
+    assertThat(scan.blamed.size()).isEqualTo(FILES / 2);
+    assertThat(lscm.commands.get()).isEqualTo(FILES / 2);
+    assertThat(lscm.peakInFlight.get()).isGreaterThan(1).isLessThanOrEqualTo(lscm.capacity());
+    assertThat(lscm.timeouts.get()).isZero();
+  }
+
+  @Test
+  public void testConcurrentScannersShareTheServer() throws Exception {
+    JazzRtcFakeLscm lscm = new JazzRtcFakeLscm(SEED).capacity(2).latency(JazzRtcFakeLscm.uniform(random, 0, 2));
+    List<Scan> scans = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      scans.add(new Scan("concurrent scanner " + i, lscm, files(lscm, FILES / 4, i * FILES, 50)));
+    }
+    ExecutorService scanners = Executors.newFixedThreadPool(scans.size());
+    try {
+      List<Future<?>> done = new ArrayList<>();
+      for (Scan scan : scans) {
+        JazzRtcBlameCommand command = command(lscm);
+        done.add(scanners.submit(() -> scan.run(command)));
+      }
+      for (Future<?> future : done) {
+        future.get(2, TimeUnit.MINUTES);
+      }
+    } finally {
+      scanners.shutdownNow();
+    }
+
+    for (Scan scan : scans) {
+      assertThat(scan.blamed.size()).isEqualTo(FILES / 4);
+    }
+    assertThat(lscm.commands.get()).isEqualTo(FILES / 4 * 4);
+    assertThat(lscm.peakInFlight.get()).isLessThanOrEqualTo(lscm.capacity());
+  }
+
+  private JazzRtcBlameCommand command(JazzRtcFakeLscm lscm) {
+    return command(lscm, System2.INSTANCE);
+  }
+
+  private JazzRtcBlameCommand command(JazzRtcFakeLscm lscm, System2 system) {
+    return new JazzRtcBlameCommand(lscm, new JazzRtcConfiguration(settings.asConfig()), system, new JazzRtcSandboxIndex());
+  }
+
+  /**
+   * Files spread over a few components of the sandbox. Nothing is written on disk, the fake only needs the paths.
+   */
+  private List<InputFile> files(JazzRtcFakeLscm lscm, int count, int first, int maxLines) {
+    List<InputFile> files = new ArrayList<>(count);
+    for (int i = first; i < first + count; i++) {
+      String path = path(i);
+      int lines = 1 + random.nextInt(maxLines);
+      lscm.file(path, lines);
+      files.add(new TestInputFileBuilder(sandbox.getAbsolutePath(), path).setModuleBaseDir(sandbox.toPath()).setLines(lines).build());
+    }
+    return files;
+  }
+
+  /**
+   * Files written on disk, for the features reading their content such as the blame cache.
+   */
+  private List<InputFile> filesOnDisk(JazzRtcFakeLscm lscm, int count, int maxLines) throws IOException {
+    List<InputFile> files = new ArrayList<>(count);
+    for (int i = 1; i <= count; i++) {
+      String path = path(i);
+      int lines = 1 + random.nextInt(maxLines);
+      StringBuilder content = new StringBuilder();
+      for (int l = 1; l <= lines; l++) {
+        content.append("line ").append(l).append('\n');
+      }
+      File file = new File(sandbox, path);
+      Files.createDirectories(file.getParentFile().toPath());
+      Files.write(file.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+      InputFile inputFile = new TestInputFileBuilder(sandbox.getAbsolutePath(), path).setModuleBaseDir(sandbox.toPath())
+        .setCharset(StandardCharsets.UTF_8).initMetadata(content.toString()).build();
+      lscm.file(path, inputFile.lines());
+      files.add(inputFile);
+    }
+    return files;
+  }
+
+  private static String path(int index) {
+    return "comp" + (index % 4) + "/src/dir" + (index % 97) + "/File" + index + ".java";
+  }
+
+  private class Scan implements BlameOutput {
+    private final String name;
+    private final JazzRtcFakeLscm lscm;
+    private final List<InputFile> files;
+    private final Set<InputFile> blamed = ConcurrentHashMap.newKeySet();
+    private long start;
+    private long end;
+
+    Scan(String name, JazzRtcFakeLscm lscm, List<InputFile> files) {
+      this.name = name;
+      this.lscm = lscm;
+      this.files = files;
+    }
+
+    @Override
+    public void blameResult(InputFile file, List<BlameLine> lines) {
+      // only count, keeping the lines would measure the test instead of the plugin
+      assertThat(lines).hasSize(file.lines());
+      assertThat(blamed.add(file)).isTrue();
+    }
+
+    void run(JazzRtcBlameCommand command) {
+      BlameInput input = mock(BlameInput.class);
+      when(input.fileSystem()).thenReturn(new DefaultFileSystem(sandbox));
+      when(input.filesToBlame()).thenReturn(files);
+      List<MemoryPoolMXBean> heap = heapPools();
+      heap.forEach(MemoryPoolMXBean::resetPeakUsage);
+      start = System.nanoTime();
+      try {
+        command.blame(input, this);
+      } finally {
+        end = System.nanoTime();
+        long peakHeap = heap.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+        String result = String.format(Locale.ROOT, "%s,%d,%.3f,%.1f,%d,%d,%d,%d,%d,%d", name, blamed.size(), seconds(),
+          blamed.size() / Math.max(seconds(), 0.001), peakHeap >> 20, lscm.commands.get(), lscm.untracked.get(), lscm.errors.get(),
+          lscm.timeouts.get(), lscm.peakInFlight.get());
+        results.add(result);
+        LOG.info("Soak {}", result);
+      }
+    }
+
+    double seconds() {
+      return (end - start) / 1e9;
+    }
+  }
+
+  private static List<MemoryPoolMXBean> heapPools() {
+    List<MemoryPoolMXBean> pools = new ArrayList<>();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        pools.add(pool);
+      }
+    }
+    return pools;
+  }
+}
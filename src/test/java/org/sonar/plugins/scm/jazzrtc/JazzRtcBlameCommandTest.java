@@ -29,6 +29,7 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
@@ -51,8 +52,15 @@ import org.sonar.api.utils.command.TimeoutException;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.fail;
@@ -91,10 +99,16 @@ public class JazzRtcBlameCommandTest {
     baseDir = temp.newFolder();
     fs = new DefaultFileSystem(baseDir);
     when(input.fileSystem()).thenReturn(fs);
+    when(configuration.get(anyString())).thenReturn(Optional.empty());
+    when(configuration.getInt(anyString())).thenReturn(Optional.empty());
+    when(configuration.getLong(anyString())).thenReturn(Optional.empty());
+    when(configuration.getBoolean(anyString())).thenReturn(Optional.empty());
+    when(configuration.getDouble(anyString())).thenReturn(Optional.empty());
     when(configuration.get(JazzRtcConfiguration.USER_PROP_KEY)).thenReturn(Optional.of("test_user"));
     when(configuration.get(JazzRtcConfiguration.PASSWRD_PROP_KEY)).thenReturn(Optional.of("test_pwd"));
     when(configuration.get(JazzRtcConfiguration.PASSWRD_FILE_PROP_KEY)).thenReturn(Optional.empty());
     when(configuration.getLong(JazzRtcConfiguration.CMD_TIMEOUT_PROP_KEY)).thenReturn(Optional.of(0L));
+    when(configuration.get(JazzRtcConfiguration.ANNOTATE_FORMAT_PROP_KEY)).thenReturn(Optional.of(JazzRtcConfiguration.TEXT_FORMAT));
   }
 
   private DefaultInputFile createTestFile(String filePath, int numLines) throws IOException {
@@ -105,6 +119,14 @@ public class JazzRtcBlameCommandTest {
     return inputFile;
   }
 
+  private DefaultInputFile createTestFile(String filePath, String content) throws IOException {
+    File source = new File(baseDir, filePath);
+    FileUtils.write(source, content, StandardCharsets.UTF_8);
+    DefaultInputFile inputFile = new TestInputFileBuilder(baseDir.getAbsolutePath(), filePath).setCharset(StandardCharsets.UTF_8).initMetadata(content).build();
+    fs.add(inputFile);
+    return inputFile;
+  }
+
   @Test
   public void testParsingOfOutput() throws IOException {
     DefaultInputFile inputFile = createTestFile("src/foo.xoo", 3);
@@ -367,4 +389,726 @@ public class JazzRtcBlameCommandTest {
     };
     verify(commandExecutor).execute(argThat(containsPwFile), any(), any(), anyLong());
   }
+
+  @Test
+  public void testAnnotateFromSandboxRoot() throws IOException {
+    File sandbox = baseDir.getParentFile();
+    new File(sandbox, ".jazz5").mkdir();
+    DefaultInputFile inputFile = createTestFile("src/foo.xoo", 3);
+    answerWithThreeLines();
+
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration)).blame(input, result);
+
+    ArgumentCaptor<Command> argument = ArgumentCaptor.forClass(Command.class);
+    verify(commandExecutor).execute(argument.capture(), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+    assertThat(argument.getValue().getDirectory()).isEqualTo(sandbox);
+    assertThat(argument.getValue().getArguments()).contains(baseDir.getName() + "/src/foo.xoo");
+    verify(result).blameResult(eq(inputFile), anyListOf(BlameLine.class));
+  }
+
+  @Test
+  public void testShardWorkerOnlyBlamesItsPartition() throws IOException {
+    File shardDir = temp.newFolder();
+    when(configuration.getInt(JazzRtcConfiguration.SHARD_COUNT_PROP_KEY)).thenReturn(Optional.of(2));
+    when(configuration.getInt(JazzRtcConfiguration.SHARD_INDEX_PROP_KEY)).thenReturn(Optional.of(0));
+    when(configuration.get(JazzRtcConfiguration.SHARD_DIR_PROP_KEY)).thenReturn(Optional.of(shardDir.getAbsolutePath()));
+    JazzRtcBlameShards shards = new JazzRtcBlameShards(2, shardDir);
+    DefaultInputFile first = createTestFile("src/foo.xoo", "foo\n\nbar");
+    DefaultInputFile second = createTestFile(fileInOtherShard(shards, "src/foo.xoo"), "foo\n\nbar");
+    answerWithThreeLines();
+
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(first, second));
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration)).blame(input, result);
+
+    String inShardZero = shards.shardOf("src/foo.xoo") == 0 ? "src/foo.xoo" : second.relativePath();
+    verify(commandExecutor).execute(argThat(annotates(inShardZero)), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+    verifyNoMoreInteractions(commandExecutor);
+    verifyZeroInteractions(result);
+    assertThat(shards.file(1)).doesNotExist();
+    assertThat(JazzRtcBlameStore.read(shards.file(0))).containsOnlyKeys(inShardZero);
+  }
+
+  @Test
+  public void testShardsAnnotateWithTheRepositoryOfTheFile() throws IOException {
+    new File(baseDir.getParentFile(), ".jazz5").mkdir();
+    when(configuration.getStringArray(JazzRtcConfiguration.REPOSITORIES_PROP_KEY)).thenReturn(new String[] {"team"});
+    when(configuration.get("sonar.jazzrtc.repository.team.components")).thenReturn(Optional.of(baseDir.getName()));
+    when(configuration.get("sonar.jazzrtc.repository.team.username")).thenReturn(Optional.of("team_user"));
+    when(configuration.getInt(JazzRtcConfiguration.SHARD_COUNT_PROP_KEY)).thenReturn(Optional.of(2));
+    when(configuration.get(JazzRtcConfiguration.SHARD_DIR_PROP_KEY)).thenReturn(Optional.of(temp.newFolder().getAbsolutePath()));
+    answerWithThreeLines();
+    DefaultInputFile inputFile = createTestFile("src/foo.xoo", "foo\n\nbar");
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
+
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration)).blame(input, result);
+
+    verify(result).blameResult(eq(inputFile), anyListOf(BlameLine.class));
+    verify(commandExecutor).execute(argThat(annotates("team_user")), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+  }
+
+  @Test
+  public void testMergeShardsAndBlameMissingFiles() throws IOException {
+    File shardDir = temp.newFolder();
+    when(configuration.getInt(JazzRtcConfiguration.SHARD_COUNT_PROP_KEY)).thenReturn(Optional.of(2));
+    when(configuration.get(JazzRtcConfiguration.SHARD_DIR_PROP_KEY)).thenReturn(Optional.of(shardDir.getAbsolutePath()));
+    JazzRtcBlameShards shards = new JazzRtcBlameShards(2, shardDir);
+    DefaultInputFile fromShard = createTestFile("src/foo.xoo", "foo\n\nbar");
+    DefaultInputFile missing = createTestFile(fileInOtherShard(shards, "src/foo.xoo"), "foo\n\nbar");
+    List<BlameLine> shardLines = Arrays.asList(
+      new BlameLine().date(DateUtils.parseDateTime("2014-12-08T10:00:00+0000")).revision("999").author("Duarte"),
+      new BlameLine().date(DateUtils.parseDateTime("2014-12-08T10:00:00+0000")).revision("999").author("Duarte"),
+      new BlameLine().date(DateUtils.parseDateTime("2014-12-08T10:00:00+0000")).revision("999").author("Duarte"));
+    shards.write(shards.shardOf("src/foo.xoo"), Collections.singletonMap("src/foo.xoo",
+      new JazzRtcBlameStore.Entry(shardLines, null, JazzRtcBlameCache.digest("foo\n\nbar"), false)));
+    answerWithThreeLines();
+
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(fromShard, missing));
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration)).blame(input, result);
+
+    verify(result).blameResult(fromShard, shardLines);
+    verify(result).blameResult(eq(missing), anyListOf(BlameLine.class));
+    verify(commandExecutor).execute(argThat(annotates(missing.relativePath())), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+    // merged shards are not used again
+    assertThat(shards.file(shards.shardOf("src/foo.xoo"))).doesNotExist();
+  }
+
+  @Test
+  public void testShardOfOtherContentIsNotMerged() throws IOException {
+    File shardDir = temp.newFolder();
+    when(configuration.getInt(JazzRtcConfiguration.SHARD_COUNT_PROP_KEY)).thenReturn(Optional.of(2));
+    when(configuration.get(JazzRtcConfiguration.SHARD_DIR_PROP_KEY)).thenReturn(Optional.of(shardDir.getAbsolutePath()));
+    JazzRtcBlameShards shards = new JazzRtcBlameShards(2, shardDir);
+    // left by an earlier run, for a content with the same number of lines
+    DefaultInputFile changed = createTestFile("src/foo.xoo", "foo\n\nbaz");
+    BlameLine stale = new BlameLine().date(DateUtils.parseDateTime("2014-12-08T10:00:00+0000")).revision("999").author("Duarte");
+    shards.write(shards.shardOf("src/foo.xoo"), Collections.singletonMap("src/foo.xoo",
+      new JazzRtcBlameStore.Entry(Arrays.asList(stale, stale, stale), null, JazzRtcBlameCache.digest("foo\n\nbar"), false)));
+    answerWithThreeLines();
+
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(changed));
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration)).blame(input, result);
+
+    ArgumentCaptor<List> lines = ArgumentCaptor.forClass(List.class);
+    verify(result).blameResult(eq(changed), lines.capture());
+    assertThat(lines.getValue()).extracting("author").containsOnly("Julien HENRY");
+    verify(commandExecutor).execute(argThat(annotates("src/foo.xoo")), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testShardDirIsMandatory() throws IOException {
+    when(configuration.getInt(JazzRtcConfiguration.SHARD_COUNT_PROP_KEY)).thenReturn(Optional.of(2));
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(createTestFile("src/foo.xoo", 3)));
+
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration)).blame(input, result);
+  }
+
+  @Test
+  public void testShardWorkerWritesWhatItBlamedWithinBudget() throws IOException {
+    File shardDir = temp.newFolder();
+    when(configuration.getInt(JazzRtcConfiguration.SHARD_COUNT_PROP_KEY)).thenReturn(Optional.of(2));
+    when(configuration.getInt(JazzRtcConfiguration.SHARD_INDEX_PROP_KEY)).thenReturn(Optional.of(0));
+    when(configuration.get(JazzRtcConfiguration.SHARD_DIR_PROP_KEY)).thenReturn(Optional.of(shardDir.getAbsolutePath()));
+    when(configuration.getLong(JazzRtcConfiguration.BUDGET_PROP_KEY)).thenReturn(Optional.of(1000L));
+    JazzRtcBlameShards shards = new JazzRtcBlameShards(2, shardDir);
+    List<String> names = filesInShard(shards, 0, 3);
+    final AtomicLong clock = new AtomicLong();
+    System2 system = mock(System2.class);
+    when(system.now()).thenAnswer(new Answer<Long>() {
+      @Override
+      public Long answer(InvocationOnMock invocation) {
+        return clock.get();
+      }
+    });
+    // the first annotate takes 600 ms, the second one is stopped at the end of the budget
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        Command cl = (Command) invocation.getArguments()[0];
+        if (clock.addAndGet(600) > 1000) {
+          throw new TimeoutException(cl, "Timeout exceeded", null);
+        }
+        ((StreamConsumer) invocation.getArguments()[1]).consumeLine("1 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager foo");
+        return 0;
+      }
+    });
+    List<InputFile> files = new ArrayList<>();
+    for (String name : names) {
+      files.add(createTestFile(name, "foo"));
+    }
+    when(input.filesToBlame()).thenReturn(files);
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration), system).blame(input, result);
+
+    assertThat(JazzRtcBlameStore.read(shards.file(0))).containsOnlyKeys(names.get(0));
+    verify(commandExecutor, times(2)).execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+  }
+
+  @Test
+  public void testFailureAfterBudgetIsNotPostponed() throws IOException {
+    when(configuration.getLong(JazzRtcConfiguration.BUDGET_PROP_KEY)).thenReturn(Optional.of(1000L));
+    final AtomicLong clock = new AtomicLong();
+    System2 system = mock(System2.class);
+    when(system.now()).thenAnswer(new Answer<Long>() {
+      @Override
+      public Long answer(InvocationOnMock invocation) {
+        return clock.get();
+      }
+    });
+    // the server fails once the budget is spent
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        clock.addAndGet(2000);
+        ((StreamConsumer) invocation.getArguments()[2]).consumeLine("Could not log in");
+        return 2;
+      }
+    });
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(createTestFile("src/foo.xoo", 1)));
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Could not log in");
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration), system).blame(input, result);
+  }
+
+  @Test
+  public void testRecordAndReplay() throws IOException {
+    File recording = new File(temp.newFolder(), "lscm.rec");
+    DefaultInputFile inputFile = createTestFile("src/foo.xoo", 3);
+    answerWithThreeLines();
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
+    when(configuration.get(JazzRtcConfiguration.RECORD_FILE_PROP_KEY)).thenReturn(Optional.of(recording.getAbsolutePath()));
+
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration)).blame(input, result);
+
+    ArgumentCaptor<List> recorded = ArgumentCaptor.forClass(List.class);
+    verify(result).blameResult(eq(inputFile), recorded.capture());
+    assertThat(recording).exists();
+
+    CommandExecutor unreachable = mock(CommandExecutor.class);
+    BlameOutput replayed = mock(BlameOutput.class);
+    when(configuration.get(JazzRtcConfiguration.RECORD_FILE_PROP_KEY)).thenReturn(Optional.empty());
+    when(configuration.get(JazzRtcConfiguration.REPLAY_FILE_PROP_KEY)).thenReturn(Optional.of(recording.getAbsolutePath()));
+    when(configuration.getDouble(JazzRtcConfiguration.REPLAY_TIME_SCALE_PROP_KEY)).thenReturn(Optional.of(0.0));
+
+    new JazzRtcBlameCommand(unreachable, new JazzRtcConfiguration(configuration)).blame(input, replayed);
+
+    verify(replayed).blameResult(inputFile, recorded.getValue());
+    verifyZeroInteractions(unreachable);
+  }
+
+  @Test
+  public void testReplayTimeout() throws IOException {
+    File recording = new File(temp.newFolder(), "lscm.rec");
+    DefaultInputFile inputFile = createTestFile("src/foo.xoo", 3);
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenThrow(new TimeoutException(null, null, null));
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
+    when(configuration.get(JazzRtcConfiguration.RECORD_FILE_PROP_KEY)).thenReturn(Optional.of(recording.getAbsolutePath()));
+    try {
+      new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration)).blame(input, result);
+      fail("expected exception");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+
+    when(configuration.get(JazzRtcConfiguration.RECORD_FILE_PROP_KEY)).thenReturn(Optional.empty());
+    when(configuration.get(JazzRtcConfiguration.REPLAY_FILE_PROP_KEY)).thenReturn(Optional.of(recording.getAbsolutePath()));
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("timed out");
+    new JazzRtcBlameCommand(mock(CommandExecutor.class), new JazzRtcConfiguration(configuration)).blame(input, result);
+  }
+
+  @Test
+  public void testHistoryEngine() throws IOException {
+    File sandbox = baseDir.getParentFile();
+    new File(sandbox, ".jazz5").mkdir();
+    String component = baseDir.getName();
+    DefaultInputFile inputFile = createTestFile("src/foo.xoo", 3);
+    DefaultInputFile notInHistory = createTestFile("src/bar.xoo", 3);
+    when(configuration.get(JazzRtcConfiguration.ENGINE_PROP_KEY)).thenReturn(Optional.of(JazzRtcConfiguration.HISTORY_ENGINE));
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        if (args.get(0).equals("show")) {
+          outConsumer.consumeLine("{\"workspaces\": [{\"name\": \"ws\", \"components\": [{\"name\": \"Component\", \"uuid\": \"_component\",");
+          outConsumer.consumeLine("  \"folders\": [{\"path\": \"/" + component + "/\"}]}]}]}");
+        } else if (args.get(0).equals("list")) {
+          assertThat(args).contains("-C", "_component");
+          outConsumer.consumeLine("{\"changes\": [");
+          outConsumer.consumeLine("  {\"author\": \"Duarte\", \"modified\": \"2015-05-29T11:23:00.000+0000\", \"uuid\": \"_cs2\"},");
+          outConsumer.consumeLine("  {\"author\": \"Julien HENRY\", \"modified\": \"2014-12-09T09:14:00.000+0000\", \"uuid\": \"_cs1\"}");
+          outConsumer.consumeLine("]}");
+        } else if (args.contains("_cs1")) {
+          outConsumer.consumeLine("--- /dev/null");
+          outConsumer.consumeLine("+++ /" + component + "/src/foo.xoo\t2014-12-09 09:14:00");
+          outConsumer.consumeLine("@@ -0,0 +1,3 @@");
+          outConsumer.consumeLine("+foo");
+          outConsumer.consumeLine("+");
+          outConsumer.consumeLine("+bar");
+        } else if (args.contains("_cs2")) {
+          outConsumer.consumeLine("--- /" + component + "/src/foo.xoo");
+          outConsumer.consumeLine("+++ /" + component + "/src/foo.xoo");
+          outConsumer.consumeLine("@@ -1,3 +1,3 @@");
+          outConsumer.consumeLine(" foo");
+          outConsumer.consumeLine("-");
+          outConsumer.consumeLine("+--- not a header");
+          outConsumer.consumeLine(" bar");
+          outConsumer.consumeLine("--- /" + component + "/src/bar.xoo");
+          outConsumer.consumeLine("+++ /" + component + "/src/bar.xoo");
+          outConsumer.consumeLine("@@ -1 +1 @@");
+          outConsumer.consumeLine("-bar");
+          outConsumer.consumeLine("+baz");
+        } else {
+          outConsumer.consumeLine("1 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager foo");
+          outConsumer.consumeLine("2 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager ");
+          outConsumer.consumeLine("3 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager bar");
+        }
+        return 0;
+      }
+    });
+
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile, notInHistory));
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration)).blame(input, result);
+
+    BlameLine first = new BlameLine().date(DateUtils.parseDateTime("2014-12-09T09:14:00+0000")).revision("_cs1").author("Julien HENRY");
+    BlameLine second = new BlameLine().date(DateUtils.parseDateTime("2015-05-29T11:23:00+0000")).revision("_cs2").author("Duarte");
+    verify(result).blameResult(inputFile, Arrays.asList(first, second, first));
+    // created before the fetched history, annotated instead
+    verify(result).blameResult(eq(notInHistory), anyListOf(BlameLine.class));
+    verify(commandExecutor).execute(argThat(annotates(component + "/src/bar.xoo")), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+    verify(commandExecutor, times(5)).execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+  }
+
+  @Test
+  public void testCacheReusedThenPatched() throws IOException {
+    when(configuration.get(JazzRtcConfiguration.CACHE_DIR_PROP_KEY)).thenReturn(Optional.of(temp.newFolder().getAbsolutePath()));
+    when(configuration.get(JazzRtcConfiguration.UNCOMMITTED_AUTHOR_PROP_KEY)).thenReturn(Optional.of("me"));
+    System2 system = mock(System2.class);
+    when(system.now()).thenReturn(DateUtils.parseDateTime("2016-01-01T10:00:00+0000").getTime());
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        for (int i = 1; i <= 10; i++) {
+          outConsumer.consumeLine(i + " Julien HENRY (1000) 2014-12-09 09:14 AM  Partager line" + i);
+        }
+        return 0;
+      }
+    });
+    DefaultInputFile original = createTestFile("src/foo.xoo", "1\n2\n3\n4\n5\n6\n7\n8\n9\n10");
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(original));
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration), system).blame(input, result);
+    ArgumentCaptor<List> annotated = ArgumentCaptor.forClass(List.class);
+    verify(result).blameResult(eq(original), annotated.capture());
+
+    // unchanged: served from the cache
+    BlameOutput unchangedResult = mock(BlameOutput.class);
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration), system).blame(input, unchangedResult);
+    verify(unchangedResult).blameResult(original, annotated.getValue());
+
+    // one line changed, one inserted: patched
+    fs = new DefaultFileSystem(baseDir);
+    when(input.fileSystem()).thenReturn(fs);
+    DefaultInputFile changed = createTestFile("src/foo.xoo", "1\nnew\n2\nchanged\n4\n5\n6\n7\n8\n9\n10");
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(changed));
+    BlameOutput patchedResult = mock(BlameOutput.class);
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration), system).blame(input, patchedResult);
+
+    BlameLine annotatedLine = new BlameLine().date(DateUtils.parseDateTime("2014-12-09T09:14:00+0000")).revision("1000").author("Julien HENRY");
+    BlameLine uncommitted = new BlameLine().date(DateUtils.parseDateTime("2016-01-01T10:00:00+0000")).revision("uncommitted").author("me");
+    verify(patchedResult).blameResult(changed, Arrays.asList(annotatedLine, uncommitted, annotatedLine, uncommitted, annotatedLine,
+      annotatedLine, annotatedLine, annotatedLine, annotatedLine, annotatedLine, annotatedLine));
+    verify(commandExecutor, times(1)).execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+  }
+
+  @Test
+  public void testJsonAnnotateWhenClientSupportsIt() throws IOException {
+    when(configuration.get(JazzRtcConfiguration.ANNOTATE_FORMAT_PROP_KEY)).thenReturn(Optional.of(JazzRtcConfiguration.AUTO_FORMAT));
+    answerWithClientVersion("6.0.6.v20180614_1753");
+    DefaultInputFile first = createTestFile("src/foo.xoo", 3);
+    DefaultInputFile second = createTestFile("src/bar.xoo", 3);
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(first, second));
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration)).blame(input, result);
+
+    BlameLine line = new BlameLine().date(DateUtils.parseDateTime("2014-12-09T09:14:27+0000")).revision("1000").author("Julien HENRY");
+    verify(result).blameResult(first, Arrays.asList(line, line, line));
+    verify(result).blameResult(second, Arrays.asList(line, line, line));
+    verify(commandExecutor, times(1)).execute(argThat(annotates("version")), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+    verify(commandExecutor, times(2)).execute(argThat(annotates("-j")), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+  }
+
+  @Test
+  public void testTextAnnotateWhenClientIsTooOld() throws IOException {
+    when(configuration.get(JazzRtcConfiguration.ANNOTATE_FORMAT_PROP_KEY)).thenReturn(Optional.of(JazzRtcConfiguration.AUTO_FORMAT));
+    answerWithClientVersion("5.0.2.v20141002_1937");
+    DefaultInputFile inputFile = createTestFile("src/foo.xoo", 3);
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration)).blame(input, result);
+
+    BlameLine line = new BlameLine().date(DateUtils.parseDateTime("2014-12-09T09:14:00+0000")).revision("1000").author("Julien HENRY");
+    verify(result).blameResult(inputFile, Arrays.asList(line, line, line));
+    verify(commandExecutor, never()).execute(argThat(annotates("-j")), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+  }
+
+  @Test
+  public void testFallbackToTextWhenJsonCannotBeParsed() throws IOException {
+    when(configuration.get(JazzRtcConfiguration.ANNOTATE_FORMAT_PROP_KEY)).thenReturn(Optional.of(JazzRtcConfiguration.JSON_FORMAT));
+    answerWithThreeLines();
+    DefaultInputFile first = createTestFile("src/foo.xoo", 3);
+    DefaultInputFile second = createTestFile("src/bar.xoo", 3);
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(first, second));
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration)).blame(input, result);
+
+    BlameLine line = new BlameLine().date(DateUtils.parseDateTime("2014-12-09T09:14:00+0000")).revision("1000").author("Julien HENRY");
+    verify(result).blameResult(first, Arrays.asList(line, line, line));
+    verify(result).blameResult(second, Arrays.asList(line, line, line));
+    // JSON is only tried once
+    verify(commandExecutor, times(1)).execute(argThat(annotates("-j")), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+    verify(commandExecutor, times(3)).execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+  }
+
+  @Test
+  public void testBudgetLeavesFilesToNextAnalysis() throws IOException {
+    File cacheDir = temp.newFolder();
+    when(configuration.get(JazzRtcConfiguration.CACHE_DIR_PROP_KEY)).thenReturn(Optional.of(cacheDir.getAbsolutePath()));
+    when(configuration.getLong(JazzRtcConfiguration.BUDGET_PROP_KEY)).thenReturn(Optional.of(1000L));
+    // every annotate takes 600 ms
+    final AtomicLong clock = new AtomicLong();
+    System2 system = mock(System2.class);
+    when(system.now()).thenAnswer(new Answer<Long>() {
+      @Override
+      public Long answer(InvocationOnMock invocation) {
+        return clock.get();
+      }
+    });
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        clock.addAndGet(600);
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        outConsumer.consumeLine("1 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager foo");
+        return 0;
+      }
+    });
+    DefaultInputFile first = createTestFile("src/first.xoo", "foo");
+    DefaultInputFile second = createTestFile("src/second.xoo", "foo");
+    DefaultInputFile third = createTestFile("src/third.xoo", "foo");
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(first, second, third));
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration), system).blame(input, result);
+
+    verify(result).blameResult(eq(first), anyListOf(BlameLine.class));
+    verify(result).blameResult(eq(second), anyListOf(BlameLine.class));
+    verifyNoMoreInteractions(result);
+    assertThat(new File(cacheDir, JazzRtcBlameBudget.PENDING_FILENAME)).hasContent("src/third.xoo");
+
+    // the file left over is annotated first, the others are served from the cache
+    clock.set(0);
+    reset(commandExecutor);
+    answerWithThreeLines();
+    BlameOutput nextResult = mock(BlameOutput.class);
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration), system).blame(input, nextResult);
+    verify(nextResult).blameResult(eq(third), anyListOf(BlameLine.class));
+    verify(nextResult).blameResult(eq(first), anyListOf(BlameLine.class));
+    verify(nextResult).blameResult(eq(second), anyListOf(BlameLine.class));
+    verify(commandExecutor, times(1)).execute(argThat(annotates("src/third.xoo")), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+    verifyNoMoreInteractions(commandExecutor);
+    assertThat(new File(cacheDir, JazzRtcBlameBudget.PENDING_FILENAME)).doesNotExist();
+  }
+
+  @Test
+  public void testLeftFilesAnnotatedFirst() throws IOException {
+    File cacheDir = temp.newFolder();
+    FileUtils.write(new File(cacheDir, JazzRtcBlameBudget.PENDING_FILENAME), "src/third.xoo\nsrc/second.xoo\n", StandardCharsets.UTF_8);
+    when(configuration.get(JazzRtcConfiguration.CACHE_DIR_PROP_KEY)).thenReturn(Optional.of(cacheDir.getAbsolutePath()));
+    answerWithThreeLines();
+    DefaultInputFile first = createTestFile("src/first.xoo", "foo\n\nbar");
+    DefaultInputFile second = createTestFile("src/second.xoo", "foo\n\nbar");
+    DefaultInputFile third = createTestFile("src/third.xoo", "foo\n\nbar");
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(first, second, third));
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration)).blame(input, result);
+
+    InOrder inOrder = inOrder(commandExecutor);
+    inOrder.verify(commandExecutor).execute(argThat(annotates("src/third.xoo")), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+    inOrder.verify(commandExecutor).execute(argThat(annotates("src/second.xoo")), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+    inOrder.verify(commandExecutor).execute(argThat(annotates("src/first.xoo")), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+  }
+
+  @Test
+  public void testAuthorsMappedToEmail() throws IOException {
+    when(configuration.get(JazzRtcConfiguration.CACHE_DIR_PROP_KEY)).thenReturn(Optional.of(temp.newFolder().getAbsolutePath()));
+    when(configuration.get(JazzRtcConfiguration.AUTHOR_MAPPING_PROP_KEY)).thenReturn(Optional.of(JazzRtcConfiguration.AUTHOR_EMAIL));
+    System2 system = mock(System2.class);
+    when(system.now()).thenReturn(DateUtils.parseDateTime("2016-01-01T10:00:00+0000").getTime());
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        if (args.get(0).equals("list")) {
+          assertThat(args).contains("users", "-j");
+          outConsumer.consumeLine("[{\"name\": \"Julien HENRY\", \"userId\": \"jhenry\", \"mail\": \"julien.henry@sonarsource.com\"},");
+          outConsumer.consumeLine(" {\"name\": \"Duarte\", \"userId\": \"duarte\"}]");
+        } else {
+          outConsumer.consumeLine("1 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager foo");
+          outConsumer.consumeLine("2 Duarte (1001) 2014-12-09 09:14 AM  Partager ");
+          outConsumer.consumeLine("3 Someone Else (1002) 2014-12-09 09:14 AM  Partager bar");
+        }
+        return 0;
+      }
+    });
+    DefaultInputFile inputFile = createTestFile("src/foo.xoo", "foo\n\nbar");
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration), system).blame(input, result);
+
+    ArgumentCaptor<List> lines = ArgumentCaptor.forClass(List.class);
+    verify(result).blameResult(eq(inputFile), lines.capture());
+    // no email: user id, unknown: display name
+    assertThat(lines.getValue()).extracting("author").containsExactly("julien.henry@sonarsource.com", "duarte", "Someone Else");
+
+    // contributors reused by the next analysis until they expire
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration), system).blame(input, mock(BlameOutput.class));
+    verify(commandExecutor, times(1)).execute(argThat(annotates("users")), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+    when(system.now()).thenReturn(DateUtils.parseDateTime("2016-01-02T10:00:01+0000").getTime());
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration), system).blame(input, mock(BlameOutput.class));
+    verify(commandExecutor, times(2)).execute(argThat(annotates("users")), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+  }
+
+  @Test
+  public void testRoutingByRepository() throws IOException {
+    File sandbox = baseDir.getParentFile();
+    new File(sandbox, ".jazz5").mkdir();
+    String slowComponent = baseDir.getName();
+    when(configuration.getStringArray(JazzRtcConfiguration.REPOSITORIES_PROP_KEY)).thenReturn(new String[] {"slow", "fast"});
+    when(configuration.get("sonar.jazzrtc.repository.slow.components")).thenReturn(Optional.of(slowComponent.substring(0, 3) + "*"));
+    when(configuration.get("sonar.jazzrtc.repository.slow.username")).thenReturn(Optional.of("slow_user"));
+    when(configuration.get("sonar.jazzrtc.repository.slow.cmd.timeout")).thenReturn(Optional.of("5000"));
+    when(configuration.get("sonar.jazzrtc.repository.fast.url")).thenReturn(Optional.of("https://fast:9443/ccm/"));
+    when(configuration.get("sonar.jazzrtc.repository.fast.threads")).thenReturn(Optional.of("2"));
+    final CountDownLatch fastDone = new CountDownLatch(2);
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        if (args.get(0).equals("show")) {
+          outConsumer.consumeLine("{\"workspaces\": [{\"name\": \"ws\", \"components\": [{\"name\": \"Fast\", \"folders\": [{\"path\": \"/fast/\"}]}],");
+          outConsumer.consumeLine("  \"url\": \"https://FAST:9443/ccm\"}]}");
+          return 0;
+        }
+        if (args.contains("slow_user")) {
+          // the slow repository does not hold the fast one back
+          assertThat(fastDone.await(5, TimeUnit.SECONDS)).isTrue();
+        } else {
+          fastDone.countDown();
+        }
+        outConsumer.consumeLine("1 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager foo");
+        return 0;
+      }
+    });
+    DefaultInputFile slow = createTestFile("src/slow.xoo", 1);
+    List<InputFile> files = new ArrayList<>();
+    files.add(slow);
+    for (String name : Arrays.asList("fast/src/foo.xoo", "fast/src/bar.xoo")) {
+      FileUtils.write(new File(sandbox, name), "sample content", StandardCharsets.UTF_8);
+      files.add(new TestInputFileBuilder(sandbox.getAbsolutePath(), name).setLines(1).build());
+    }
+    when(input.filesToBlame()).thenReturn(files);
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration)).blame(input, result);
+
+    for (InputFile file : files) {
+      verify(result).blameResult(eq(file), anyListOf(BlameLine.class));
+    }
+    verify(commandExecutor).execute(argThat(annotates("slow_user")), any(StreamConsumer.class), any(StreamConsumer.class), eq(5000L));
+    verify(commandExecutor).execute(argThat(annotates("fast/src/foo.xoo")), any(StreamConsumer.class), any(StreamConsumer.class),
+      eq(JazzRtcConfiguration.CMD_DEFAULT_TIMEOUT));
+    verify(commandExecutor).execute(argThat(annotates("fast/src/bar.xoo")), any(StreamConsumer.class), any(StreamConsumer.class),
+      eq(JazzRtcConfiguration.CMD_DEFAULT_TIMEOUT));
+    verify(commandExecutor, times(1)).execute(argThat(annotates("sandbox-structure")), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+  }
+
+  @Test
+  public void testPolicySkipsOrCoarselyAttributesExpensiveFiles() throws IOException {
+    when(configuration.getStringArray(JazzRtcConfiguration.SKIP_PATTERNS_PROP_KEY)).thenReturn(new String[] {"**/gen/**"});
+    when(configuration.getInt(JazzRtcConfiguration.COARSE_LINES_PROP_KEY)).thenReturn(Optional.of(3));
+    when(configuration.getStringArray(JazzRtcConfiguration.GENERATED_MARKERS_PROP_KEY)).thenReturn(new String[] {"DO NOT EDIT"});
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        if (args.get(0).equals("show")) {
+          assertThat(args).contains("history", "-j", "-m", "1");
+          outConsumer.consumeLine("{\"changes\": [{\"uuid\": \"_last\", \"author\": \"Duarte\", \"modified\": \"2015-03-02T10:00:00.000+0000\"}]}");
+        } else {
+          outConsumer.consumeLine("1 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager foo");
+          outConsumer.consumeLine("2 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager ");
+          outConsumer.consumeLine("3 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager bar");
+        }
+        return 0;
+      }
+    });
+    DefaultInputFile small = createTestFile("src/small.xoo", "foo\n\nbar");
+    DefaultInputFile big = createTestFile("src/big.xoo", "1\n2\n3\n4\n5");
+    DefaultInputFile marked = createTestFile("src/marked.xoo", "// DO NOT EDIT\n\nbar");
+    DefaultInputFile generated = createTestFile("src/gen/skipped.xoo", "foo\n\nbar");
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(small, big, marked, generated));
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration)).blame(input, result);
+
+    ArgumentCaptor<List> lines = ArgumentCaptor.forClass(List.class);
+    verify(result).blameResult(eq(small), lines.capture());
+    assertThat(lines.getValue()).extracting("author").containsOnly("Julien HENRY");
+    verify(result).blameResult(eq(big), lines.capture());
+    assertThat(lines.getValue()).hasSize(5).extracting("revision").containsOnly("_last");
+    verify(result).blameResult(eq(marked), lines.capture());
+    assertThat(lines.getValue()).hasSize(3).extracting("author").containsOnly("Duarte");
+    verify(result, never()).blameResult(eq(generated), anyListOf(BlameLine.class));
+    verify(commandExecutor, never()).execute(argThat(annotates("src/gen/skipped.xoo")), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+    verify(commandExecutor).execute(argThat(annotates("src/small.xoo")), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+    verify(commandExecutor, times(2)).execute(argThat(annotates("history")), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+  }
+
+  @Test
+  public void testAnnotateOutputSpilledToWorkDir() throws IOException {
+    File workDir = temp.newFolder();
+    fs.setWorkDir(workDir.toPath());
+    when(configuration.getBoolean(JazzRtcConfiguration.ANNOTATE_SPILL_PROP_KEY)).thenReturn(Optional.of(true));
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        outConsumer.consumeLine("1 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager foo");
+        outConsumer.consumeLine("2 Duarte (1001) 2014-12-09 09:14 AM  Partager ");
+        outConsumer.consumeLine("3 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager bar");
+        return 0;
+      }
+    });
+    DefaultInputFile inputFile = createTestFile("src/foo.xoo", 3);
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
+    new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration)).blame(input, result);
+
+    ArgumentCaptor<List> lines = ArgumentCaptor.forClass(List.class);
+    verify(result).blameResult(eq(inputFile), lines.capture());
+    assertThat(lines.getValue()).extracting("revision").containsExactly("1000", "1001", "1000");
+    assertThat(lines.getValue()).extracting("author").containsExactly("Julien HENRY", "Duarte", "Julien HENRY");
+    // output files are removed once parsed
+    assertThat(new File(workDir, "jazzrtc").list()).isEmpty();
+  }
+
+  @Test
+  public void testUnreadableTextOutputIsNotRetried() throws IOException {
+    File workDir = temp.newFolder();
+    fs.setWorkDir(workDir.toPath());
+    when(configuration.getBoolean(JazzRtcConfiguration.ANNOTATE_SPILL_PROP_KEY)).thenReturn(Optional.of(true));
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        // the output file disappears before it is parsed
+        for (File spilled : new File(workDir, "jazzrtc").listFiles()) {
+          assertThat(spilled.delete()).isTrue();
+        }
+        return 0;
+      }
+    });
+    DefaultInputFile inputFile = createTestFile("src/foo.xoo", 3);
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
+
+    try {
+      new JazzRtcBlameCommand(commandExecutor, new JazzRtcConfiguration(configuration)).blame(input, result);
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage()).contains("Unable to read the output of the jazz annotate command");
+    }
+    verify(commandExecutor, times(1)).execute(argThat(annotates("src/foo.xoo")), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+  }
+
+  private void answerWithClientVersion(final String version) {
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        if (args.get(0).equals("version")) {
+          assertThat(args).hasSize(1);
+          outConsumer.consumeLine("Build Id: RTC-I20180614-1753");
+          outConsumer.consumeLine("");
+          outConsumer.consumeLine("com.ibm.team.filesystem.cli.client, version " + version);
+          outConsumer.consumeLine("  Located at URL: file:/opt/jazz/scmtools/eclipse/plugins/com.ibm.team.filesystem.cli.client_" + version + ".jar");
+        } else if (args.contains("-j")) {
+          outConsumer.consumeLine("[");
+          for (int i = 1; i <= 3; i++) {
+            outConsumer.consumeLine("  {\"author\": \"Julien HENRY\", \"changeset\": {\"id\": 1000, \"uuid\": \"_cs1000\"}, "
+              + "\"date\": \"2014-12-09T09:14:27.000+0000\", \"line-no\": " + i + ", \"content\": \"12 Julien (1) 2014-12-09 09:14 AM x\"}"
+              + (i < 3 ? "," : ""));
+          }
+          outConsumer.consumeLine("]");
+        } else {
+          outConsumer.consumeLine("1 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager foo");
+          outConsumer.consumeLine("2 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager ");
+          outConsumer.consumeLine("3 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager bar");
+        }
+        return 0;
+      }
+    });
+  }
+
+  private static String fileInOtherShard(JazzRtcBlameShards shards, String filename) {
+    int shard = shards.shardOf(filename);
+    for (int i = 0;; i++) {
+      String candidate = "src/bar" + i + ".xoo";
+      if (shards.shardOf(candidate) != shard) {
+        return candidate;
+      }
+    }
+  }
+
+  private static List<String> filesInShard(JazzRtcBlameShards shards, int shard, int count) {
+    List<String> names = new ArrayList<>();
+    for (int i = 0; names.size() < count; i++) {
+      String candidate = "src/bar" + i + ".xoo";
+      if (shards.shardOf(candidate) == shard) {
+        names.add(candidate);
+      }
+    }
+    return names;
+  }
+
+  private void answerWithThreeLines() {
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        outConsumer.consumeLine("1 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager foo");
+        outConsumer.consumeLine("2 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager ");
+        outConsumer.consumeLine("3 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager bar");
+        return 0;
+      }
+    });
+  }
+
+  private static Matcher<Command> annotates(final String filename) {
+    return new BaseMatcher<Command>() {
+      @Override
+      public boolean matches(Object o) {
+        return o instanceof Command && ((Command) o).getArguments().contains(filename);
+      }
+
+      @Override
+      public void describeTo(Description description) {
+        description.appendText("Command that annotates " + filename);
+      }
+    };
+  }
 }
@@ -0,0 +1,78 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JazzRtcBlamePolicyTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void testAnnotateAllByDefault() throws IOException {
+    JazzRtcBlamePolicy policy = JazzRtcBlamePolicy.annotateAll();
+    assertThat(policy.isActive()).isFalse();
+    assertThat(policy.decide("src/gen/Foo.java", file("src/gen/Foo.java", "// @Generated\nfoo"))).isEqualTo(JazzRtcBlamePolicy.Decision.ANNOTATE);
+    assertThat(policy.annotated()).isEqualTo(1);
+  }
+
+  @Test
+  public void testSkipWinsOverCoarse() throws IOException {
+    JazzRtcBlamePolicy policy = new JazzRtcBlamePolicy(new String[] {"**/*.min.js"}, 0, 10, new String[] {"**/*.js"}, 1, new String[] {"@Generated"});
+    assertThat(policy.decide("web/app.min.js", file("web/app.min.js", "a"))).isEqualTo(JazzRtcBlamePolicy.Decision.SKIP);
+    assertThat(policy.decide("web/app.js", file("web/app.js", "a"))).isEqualTo(JazzRtcBlamePolicy.Decision.COARSE);
+    // over the size limit
+    assertThat(policy.decide("src/Big.java", file("src/Big.java", "0123456789a"))).isEqualTo(JazzRtcBlamePolicy.Decision.SKIP);
+    assertThat(policy.decide("src/Gen.java", file("src/Gen.java", "@Generated"))).isEqualTo(JazzRtcBlamePolicy.Decision.COARSE);
+    assertThat(policy.decide("src/Foo.java", file("src/Foo.java", "foo"))).isEqualTo(JazzRtcBlamePolicy.Decision.ANNOTATE);
+    assertThat(policy.annotated()).isEqualTo(1);
+    assertThat(policy.coarse()).isEqualTo(2);
+    assertThat(policy.skipped()).isEqualTo(2);
+  }
+
+  @Test
+  public void testMarkerOnlyLookedForInTheHead() throws IOException {
+    JazzRtcBlamePolicy policy = new JazzRtcBlamePolicy(null, 0, 0, null, 0, new String[] {"DO NOT EDIT"});
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < JazzRtcBlamePolicy.MARKER_HEAD_SIZE; i++) {
+      content.append('x');
+    }
+    content.append("DO NOT EDIT");
+    assertThat(policy.decide("src/Foo.java", file("src/Foo.java", content.toString()))).isEqualTo(JazzRtcBlamePolicy.Decision.ANNOTATE);
+  }
+
+  private InputFile file(String path, String content) throws IOException {
+    File baseDir = temp.getRoot();
+    FileUtils.write(new File(baseDir, path), content, StandardCharsets.UTF_8);
+    return new TestInputFileBuilder(baseDir.getAbsolutePath(), path).setCharset(StandardCharsets.UTF_8).initMetadata(content).build();
+  }
+}
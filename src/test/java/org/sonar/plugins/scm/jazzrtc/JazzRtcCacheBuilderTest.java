@@ -0,0 +1,154 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.System2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeFalse;
+
+public class JazzRtcCacheBuilderTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Rule
+  public UTCRule utcRule = new UTCRule();
+
+  private File sandbox;
+  private File cacheDir;
+  private File lscm;
+  private File calls;
+
+  @Before
+  public void prepare() throws IOException {
+    assumeFalse(System2.INSTANCE.isOsWindows());
+    sandbox = temp.newFolder("sandbox");
+    new File(sandbox, ".jazz5").mkdir();
+    FileUtils.write(new File(sandbox, ".jazz5/metadata"), "not to be blamed", StandardCharsets.UTF_8);
+    FileUtils.write(new File(sandbox, "component/src/foo.txt"), "foo\nbar\n", StandardCharsets.UTF_8);
+    FileUtils.write(new File(sandbox, "component/src/baz.txt"), "baz", StandardCharsets.UTF_8);
+    FileUtils.write(new File(sandbox, "component/untracked.txt"), "untracked", StandardCharsets.UTF_8);
+    FileUtils.write(new File(sandbox, "component/.jazzignore"), "core.ignore = {bin} \\\n  {*.log}\n", StandardCharsets.UTF_8);
+    FileUtils.write(new File(sandbox, "component/bin/foo.class"), "built", StandardCharsets.UTF_8);
+    FileUtils.write(new File(sandbox, "component/build.log"), "built", StandardCharsets.UTF_8);
+    cacheDir = new File(temp.getRoot(), "cache");
+    calls = new File(temp.getRoot(), "calls.log");
+
+    // fake client: annotates any file but the untracked one, and does not know its version
+    lscm = new File(temp.getRoot(), "lscm");
+    FileUtils.write(lscm, "#!/bin/sh\n"
+      + "echo \"$@\" >> '" + calls.getAbsolutePath() + "'\n"
+      + "[ \"$1\" = annotate ] || exit 1\n"
+      + "for file; do :; done\n"
+      + "case \"$file\" in *untracked*) exit 30 ;; esac\n"
+      + "awk '{ printf \"%d Julien HENRY (1000) 2014-12-09 09:14 AM  Share %s\\n\", NR, $0 }' \"$file\"\n", StandardCharsets.UTF_8);
+    assertThat(lscm.setExecutable(true)).isTrue();
+  }
+
+  @Test
+  public void testBuildThenReuse() throws IOException {
+    String[] args = {new File(sandbox, "component").getAbsolutePath(), "sonar.jazzrtc.cache.dir=" + cacheDir.getAbsolutePath(),
+      "sonar.jazzrtc.lscm.path=" + lscm.getAbsolutePath(), "sonar.jazzrtc.username=me", "sonar.jazzrtc.builder.threads=2"};
+    assertThat(JazzRtcCacheBuilder.run(args)).isEqualTo(0);
+
+    Map<String, JazzRtcBlameStore.Entry> cache = JazzRtcBlameStore.read(new File(cacheDir, JazzRtcBlameCache.FILENAME));
+    // ignored files are not annotated
+    assertThat(cache.keySet()).containsOnly("component/src/foo.txt", "component/src/baz.txt", "component/.jazzignore");
+    List<BlameLine> lines = cache.get("component/src/foo.txt").lines();
+    // the empty last line gets the blame of the previous one, like in analyses
+    assertThat(lines).hasSize(3);
+    assertThat(lines).extracting("author").containsOnly("Julien HENRY");
+    assertThat(lines).extracting("revision").containsOnly("1000");
+    assertThat(cache.get("component/src/foo.txt").lineHashes()).isEqualTo(JazzRtcBlameCache.lineHashes("foo\nbar\n"));
+    assertThat(cache.get("component/src/foo.txt").digest()).isEqualTo(JazzRtcBlameCache.digest("foo\nbar\n"));
+    assertThat(annotateCalls()).isEqualTo(4);
+
+    // only the changed file is annotated again
+    FileUtils.write(new File(sandbox, "component/src/baz.txt"), "baz\nqux", StandardCharsets.UTF_8);
+    assertThat(JazzRtcCacheBuilder.run(args)).isEqualTo(0);
+    assertThat(annotateCalls()).isEqualTo(6);
+    cache = JazzRtcBlameStore.read(new File(cacheDir, JazzRtcBlameCache.FILENAME));
+    assertThat(cache.get("component/src/baz.txt").lines()).hasSize(2);
+    assertThat(cache.get("component/src/baz.txt").isPatched()).isFalse();
+
+    // deleted files are forgotten
+    assertThat(new File(sandbox, "component/src/baz.txt").delete()).isTrue();
+    assertThat(JazzRtcCacheBuilder.run(args)).isEqualTo(0);
+    assertThat(JazzRtcBlameStore.read(new File(cacheDir, JazzRtcBlameCache.FILENAME)).keySet()).containsOnly("component/src/foo.txt", "component/.jazzignore");
+  }
+
+  @Test
+  public void testByteOrderMarkIsNotPartOfTheDigest() throws IOException {
+    FileUtils.write(new File(sandbox, "component/src/foo.txt"), "\uFEFFfoo\nbar\n", StandardCharsets.UTF_8);
+    String[] args = {new File(sandbox, "component").getAbsolutePath(), "sonar.jazzrtc.cache.dir=" + cacheDir.getAbsolutePath(),
+      "sonar.jazzrtc.lscm.path=" + lscm.getAbsolutePath(), "sonar.sourceEncoding=UTF-8"};
+    assertThat(JazzRtcCacheBuilder.run(args)).isEqualTo(0);
+
+    Map<String, JazzRtcBlameStore.Entry> cache = JazzRtcBlameStore.read(new File(cacheDir, JazzRtcBlameCache.FILENAME));
+    assertThat(cache.get("component/src/foo.txt").digest()).isEqualTo(JazzRtcBlameCache.digest("foo\nbar\n"));
+  }
+
+  @Test
+  public void testCommandLineProperties() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put(JazzRtcConfiguration.SKIP_PATTERNS_PROP_KEY, " **/*.min.js, ,**/vendor/** ");
+    properties.put(JazzRtcConfiguration.USER_PROP_KEY, " me ");
+    properties.put(JazzRtcConfiguration.PASSWRD_PROP_KEY, "");
+    Configuration configuration = new JazzRtcCacheBuilder.PropertiesConfiguration(properties);
+
+    assertThat(configuration.getStringArray(JazzRtcConfiguration.SKIP_PATTERNS_PROP_KEY)).containsExactly("**/*.min.js", "**/vendor/**");
+    assertThat(configuration.getStringArray(JazzRtcConfiguration.GENERATED_MARKERS_PROP_KEY)).isEmpty();
+    assertThat(configuration.get(JazzRtcConfiguration.USER_PROP_KEY).orElse(null)).isEqualTo("me");
+    assertThat(configuration.get(JazzRtcConfiguration.PASSWRD_PROP_KEY).isPresent()).isFalse();
+    assertThat(configuration.getInt(JazzRtcCacheBuilder.THREADS_PROP_KEY).isPresent()).isFalse();
+  }
+
+  @Test
+  public void testUsage() {
+    assertThat(JazzRtcCacheBuilder.run(new String[0])).isEqualTo(2);
+    assertThat(JazzRtcCacheBuilder.run(new String[] {sandbox.getAbsolutePath()})).isEqualTo(2);
+    assertThat(JazzRtcCacheBuilder.run(new String[] {sandbox.getAbsolutePath(), "sonar.jazzrtc.cache.dir"})).isEqualTo(2);
+  }
+
+  private int annotateCalls() throws IOException {
+    int count = 0;
+    for (String call : FileUtils.readLines(calls, StandardCharsets.UTF_8)) {
+      if (call.startsWith("annotate -u me")) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.StreamConsumer;
+import org.sonar.api.utils.command.TimeoutException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Simulated Jazz RTC client and server: annotates the registered files after a latency drawn from a distribution,
+ * with a server serving a limited number of commands at a time, and answers some commands with the untracked exit
+ * codes or a server error. All the draws come from a seeded random, so that a run can be reproduced.
+ */
+class JazzRtcFakeLscm implements JazzRtcExecutor {
+
+  static final int SERVER_ERROR = 2;
+  private static final int[] UNTRACKED_CODES = {1, 3, 30};
+
+  private final Random random;
+  private final Map<String, Integer> lineCounts = new ConcurrentHashMap<>();
+  private LongSupplier latency = () -> 0;
+  private double untrackedRate;
+  private double errorRate;
+  private Semaphore server = new Semaphore(Integer.MAX_VALUE);
+  private int capacity = Integer.MAX_VALUE;
+  // milliseconds elapsed on the simulated clock, null when the commands really wait
+  private AtomicLong clock;
+
+  final AtomicInteger commands = new AtomicInteger();
+  final AtomicInteger annotated = new AtomicInteger();
+  final AtomicInteger untracked = new AtomicInteger();
+  final AtomicInteger errors = new AtomicInteger();
+  final AtomicInteger timeouts = new AtomicInteger();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  final AtomicInteger peakInFlight = new AtomicInteger();
+
+  JazzRtcFakeLscm(long seed) {
+    this.random = new Random(seed);
+  }
+
+  /**
+   * @param filename path relative to the sandbox root, as given to annotate
+   */
+  JazzRtcFakeLscm file(String filename, int lines) {
+    lineCounts.put(filename, lines);
+    return this;
+  }
+
+  JazzRtcFakeLscm latency(LongSupplier milliseconds) {
+    this.latency = milliseconds;
+    return this;
+  }
+
+  /**
+   * Share of the annotates answered with exit code 1, 3 or 30.
+   */
+  JazzRtcFakeLscm untrackedRate(double rate) {
+    this.untrackedRate = rate;
+    return this;
+  }
+
+  /**
+   * Share of the annotates failing with a server error.
+   */
+  JazzRtcFakeLscm errorRate(double rate) {
+    this.errorRate = rate;
+    return this;
+  }
+
+  /**
+   * Number of commands the server runs at the same time, the others wait for their turn within their timeout.
+   */
+  JazzRtcFakeLscm capacity(int capacity) {
+    this.capacity = capacity;
+    this.server = new Semaphore(capacity, true);
+    return this;
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  /**
+   * The commands advance a simulated clock by their latency instead of waiting, see {@link #system()}.
+   */
+  JazzRtcFakeLscm simulatedTime() {
+    this.clock = new AtomicLong();
+    return this;
+  }
+
+  /**
+   * @return the simulated clock, for the features measuring the time spent by the commands
+   */
+  System2 system() {
+    System2 system = mock(System2.class);
+    when(system.now()).thenAnswer(invocation -> clock.get());
+    return system;
+  }
+
+  static LongSupplier uniform(Random random, long min, long max) {
+    return () -> min + (long) (random.nextDouble() * (max - min));
+  }
+
+  /**
+   * Most commands are fast, a few are very slow.
+   */
+  static LongSupplier exponential(Random random, double mean) {
+    return () -> (long) (-mean * Math.log(1 - random.nextDouble()));
+  }
+
+  @Override
+  public int execute(Command cl, StreamConsumer stdout, StreamConsumer stderr, long timeoutMilliseconds) {
+    commands.incrementAndGet();
+    long start = now();
+    try {
+      if (!server.tryAcquire(timeoutMilliseconds, TimeUnit.MILLISECONDS)) {
+        timeouts.incrementAndGet();
+        throw new TimeoutException(cl, "Timeout exceeded: " + timeoutMilliseconds + " ms waiting for the server", null);
+      }
+      try {
+        peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        long remaining = timeoutMilliseconds - (now() - start);
+        long duration = latency.getAsLong();
+        if (duration > remaining) {
+          pass(Math.max(remaining, 0));
+          timeouts.incrementAndGet();
+          throw new TimeoutException(cl, "Timeout exceeded: " + timeoutMilliseconds + " ms", null);
+        }
+        pass(duration);
+        return answer(cl.getArguments(), stdout, stderr);
+      } finally {
+        inFlight.decrementAndGet();
+        server.release();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted", e);
+    }
+  }
+
+  private long now() {
+    return clock != null ? clock.get() : TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+  }
+
+  private void pass(long milliseconds) throws InterruptedException {
+    if (clock != null) {
+      clock.addAndGet(milliseconds);
+    } else {
+      Thread.sleep(milliseconds);
+    }
+  }
+
+  private int answer(List<String> arguments, StreamConsumer stdout, StreamConsumer stderr) {
+    if (!"annotate".equals(arguments.get(0))) {
+      stderr.consumeLine("Unknown command " + arguments);
+      return SERVER_ERROR;
+    }
+    String filename = arguments.get(arguments.size() - 1);
+    Integer lines = lineCounts.get(filename);
+    double draw = random.nextDouble();
+    if (lines == null || draw < untrackedRate) {
+      untracked.incrementAndGet();
+      return UNTRACKED_CODES[random.nextInt(UNTRACKED_CODES.length)];
+    }
+    if (draw < untrackedRate + errorRate) {
+      errors.incrementAndGet();
+      stderr.consumeLine("Problem running 'annotate': Server is too busy");
+      return SERVER_ERROR;
+    }
+    // a few change sets per file, by a handful of authors
+    int changesets = 1 + Math.floorMod(filename.hashCode(), 5);
+    for (int i = 1; i <= lines; i++) {
+      int changeset = 1000 + (i % changesets);
+      stdout.consumeLine(i + " Author " + (changeset % 7) + " (" + changeset + ") 2014-12-09 09:14 AM  Changeset " + changeset + " line " + i);
+    }
+    annotated.incrementAndGet();
+    return 0;
+  }
+}
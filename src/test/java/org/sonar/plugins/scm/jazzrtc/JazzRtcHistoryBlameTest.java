@@ -0,0 +1,143 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.CommandExecutor;
+import org.sonar.api.utils.command.StreamConsumer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class JazzRtcHistoryBlameTest {
+
+  @Test
+  public void testParseHistory() throws IOException {
+    String json = "{\"changes\": [{\"author\": {\"name\": \"Duarte\", \"userId\": \"duarte\"}, \"comment\": \"Share \\\"quoted\\\" [1]\", "
+      + "\"modified\": \"2015-05-29T11:23:00.000+0000\", \"uuid\": \"_cs2\", \"workitems\": [{\"id\": 12, \"done\": true}]},"
+      + "{\"author\": \"Julien HENRY\", \"modified\": \"2014-12-09 09:14 AM\", \"uuid\": \"_cs1\", \"parent\": null}]}";
+
+    List<JazzRtcHistoryBlame.Changeset> history = JazzRtcHistoryBlame.parseHistory(json);
+
+    assertThat(history).extracting("uuid").containsExactly("_cs2", "_cs1");
+    assertThat(history).extracting("author").containsExactly("Duarte", "Julien HENRY");
+    assertThat(history.get(0).date).isNotNull();
+    assertThat(history.get(1).date).isNotNull();
+  }
+
+  @Test
+  public void testApplyDiffs() {
+    Map<String, JazzRtcUnifiedDiff.FileDiff> creation = JazzRtcUnifiedDiff.parse(Arrays.asList(
+      "--- /dev/null",
+      "+++ b/comp/Foo.java",
+      "@@ -0,0 +1,4 @@",
+      "+a",
+      "+b",
+      "+c",
+      "+d",
+      "\\ No newline at end of file"));
+    Map<String, JazzRtcUnifiedDiff.FileDiff> change = JazzRtcUnifiedDiff.parse(Arrays.asList(
+      "--- a/comp/Foo.java",
+      "+++ b/comp/Foo.java",
+      "@@ -1,0 +2,2 @@",
+      "+x",
+      "+y",
+      "@@ -3,2 +5 @@",
+      "-c",
+      " d"));
+
+    int[] origins = JazzRtcUnifiedDiff.apply(null, creation.get("comp/Foo.java").hunks, 0);
+    assertThat(origins).containsExactly(0, 0, 0, 0);
+    origins = JazzRtcUnifiedDiff.apply(origins, change.get("comp/Foo.java").hunks, 1);
+    assertThat(origins).containsExactly(0, 1, 1, 0, 0);
+  }
+
+  @Test
+  public void testDiffNotMatchingHistory() {
+    Map<String, JazzRtcUnifiedDiff.FileDiff> change = JazzRtcUnifiedDiff.parse(Arrays.asList(
+      "--- a/comp/Foo.java",
+      "+++ b/comp/Foo.java",
+      "@@ -10,2 +10,2 @@",
+      "-c",
+      "+x",
+      " d"));
+
+    assertThat(JazzRtcUnifiedDiff.apply(new int[] {0, 0, 0}, change.get("comp/Foo.java").hunks, 1)).isNull();
+  }
+
+  @Test
+  public void testDeletion() {
+    Map<String, JazzRtcUnifiedDiff.FileDiff> deletion = JazzRtcUnifiedDiff.parse(Arrays.asList(
+      "--- /comp/Foo.java\t2015-05-29 11:23:00",
+      "+++ /dev/null",
+      "@@ -1 +0,0 @@",
+      "-a"));
+
+    assertThat(deletion.get("comp/Foo.java").deleted).isTrue();
+  }
+
+  @Test
+  public void testChangesetWithoutDateIsLeftToAnnotate() {
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        if (args.get(0).equals("list")) {
+          // newest first, the last change set has no date
+          outConsumer.consumeLine("{\"changes\": [{\"author\": \"Duarte\", \"uuid\": \"_cs2\"},");
+          outConsumer.consumeLine("  {\"author\": \"Julien HENRY\", \"modified\": \"2014-12-09T09:14:00.000+0000\", \"uuid\": \"_cs1\"}]}");
+        } else if (args.contains("_cs1")) {
+          for (String line : Arrays.asList("--- /dev/null", "+++ b/comp/Foo.java", "@@ -0,0 +1 @@", "+a",
+            "--- /dev/null", "+++ b/comp/Bar.java", "@@ -0,0 +1 @@", "+b")) {
+            outConsumer.consumeLine(line);
+          }
+        } else {
+          for (String line : Arrays.asList("--- a/comp/Bar.java", "+++ b/comp/Bar.java", "@@ -1 +1 @@", "-b", "+c")) {
+            outConsumer.consumeLine(line);
+          }
+        }
+        return 0;
+      }
+    });
+    JazzRtcBlameCommand lscm = new JazzRtcBlameCommand(commandExecutor, mock(JazzRtcConfiguration.class));
+
+    Map<String, List<BlameLine>> blame = new JazzRtcHistoryBlame(lscm, 10).blame(JazzRtcRepository.defaults(mock(JazzRtcConfiguration.class)), new File("."),
+      "_comp", Arrays.asList("comp/Foo.java", "comp/Bar.java"));
+
+    assertThat(blame.keySet()).containsOnly("comp/Foo.java");
+    assertThat(blame.get("comp/Foo.java")).extracting("revision").containsExactly("_cs1");
+  }
+}
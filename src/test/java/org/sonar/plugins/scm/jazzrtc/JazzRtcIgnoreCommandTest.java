@@ -0,0 +1,85 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.scm.IgnoreCommand;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JazzRtcIgnoreCommandTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void testJazzIgnoreFiles() throws IOException {
+    File sandbox = temp.newFolder();
+    new File(sandbox, ".jazz5").mkdir();
+    FileUtils.write(new File(sandbox, ".jazzignore"), "### Jazz Ignore 0\n"
+      + "# Ignored files and folders will not be committed\n"
+      + "core.ignore.recursive= \\\n"
+      + "\t{*.class} \\\n"
+      + "\t{\\.*} \n"
+      + "\n"
+      + "core.ignore= \\\n"
+      + "\t{bin} \n", StandardCharsets.UTF_8);
+    FileUtils.write(new File(sandbox, "component/.jazzignore"), "core.ignore = {target} {gen?}\n", StandardCharsets.UTF_8);
+    Path project = new File(sandbox, "component").toPath();
+
+    IgnoreCommand ignore = new JazzRtcScmProvider(null, new JazzRtcSandboxIndex()).ignoreCommand();
+    ignore.init(project);
+
+    assertThat(ignore.isIgnored(project.resolve("src/Foo.java"))).isFalse();
+    // recursive patterns of the sandbox root
+    assertThat(ignore.isIgnored(project.resolve("src/Foo.class"))).isTrue();
+    assertThat(ignore.isIgnored(project.resolve(".settings/org.eclipse.jdt.core.prefs"))).isTrue();
+    // direct patterns only apply to the folder of the ignore file
+    assertThat(ignore.isIgnored(sandbox.toPath().resolve("bin/Foo.java"))).isTrue();
+    assertThat(ignore.isIgnored(project.resolve("bin/Foo.java"))).isFalse();
+    assertThat(ignore.isIgnored(project.resolve("target/classes/Foo.txt"))).isTrue();
+    assertThat(ignore.isIgnored(project.resolve("gen1/Foo.java"))).isTrue();
+    assertThat(ignore.isIgnored(project.resolve("gen12/Foo.java"))).isFalse();
+    assertThat(ignore.isIgnored(project.resolve("src/target/Foo.java"))).isFalse();
+    assertThat(ignore.isIgnored(temp.newFolder().toPath().resolve("Foo.class"))).isFalse();
+
+    ignore.clean();
+    assertThat(ignore.isIgnored(project.resolve("src/Foo.class"))).isFalse();
+  }
+
+  @Test
+  public void testOutsideOfSandbox() throws IOException {
+    File baseDir = temp.newFolder();
+    FileUtils.write(new File(baseDir, ".jazzignore"), "core.ignore.recursive = {*.log}\n", StandardCharsets.UTF_8);
+
+    IgnoreCommand ignore = new JazzRtcIgnoreCommand(new JazzRtcSandboxIndex());
+    ignore.init(baseDir.toPath());
+    assertThat(ignore.isIgnored(baseDir.toPath().resolve("logs/build.log"))).isTrue();
+    assertThat(ignore.isIgnored(baseDir.toPath().resolve("logs/build.txt"))).isFalse();
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.DateUtils;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class JazzRtcJsonBlameConsumerTest {
+
+  @Rule
+  public UTCRule utcRule = new UTCRule();
+
+  @Test
+  public void testParsing() throws IOException {
+    JazzRtcJsonBlameConsumer consumer = new JazzRtcJsonBlameConsumer("dummy.java");
+    consumer.consumeLine("{\"annotations\": [");
+    consumer.consumeLine("  {\"line-no\": 1, \"author\": {\"name\": \"Duarte\", \"mail\": \"d@x\"}, \"uuid\": \"_cs1\", \"date\": \"2015-05-29T11:23:41.000+0000\","
+      + " \"content\": \"{ [ \\\"not\\\" json\"},");
+    consumer.consumeLine("  {\"line-no\": 2, \"author\": \"Julien HENRY\", \"uuid\": \"_cs2\", \"date\": \"2014-12-09T09:14:00.000+0000\", \"content\": \"\"},");
+    consumer.consumeLine("  {\"line-no\": 3, \"author\": {\"name\": \"Duarte\"}, \"uuid\": \"_cs1\", \"date\": \"2015-05-29T11:23:41.000+0000\", \"content\": null}");
+    consumer.consumeLine("], \"time\": 12}");
+
+    List<BlameLine> lines = consumer.getLines();
+    assertThat(lines).extracting("author").containsExactly("Duarte", "Julien HENRY", "Duarte");
+    assertThat(lines).extracting("revision").containsExactly("_cs1", "_cs2", "_cs1");
+    assertThat(lines.get(0).date()).isEqualTo(DateUtils.parseDateTime("2015-05-29T11:23:41+0000"));
+    // one instance per change set
+    assertThat(lines.get(2)).isSameAs(lines.get(0));
+  }
+
+  @Test
+  public void testUnexpectedLineNumber() {
+    JazzRtcJsonBlameConsumer consumer = new JazzRtcJsonBlameConsumer("dummy.java");
+    consumer.consumeLine("[{\"line-no\": 2, \"author\": \"Duarte\", \"uuid\": \"_cs1\"}]");
+    try {
+      consumer.getLines();
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Expecting blame info for line 1 but was 2");
+    }
+  }
+
+  @Test
+  public void testTextOutputIsRejected() {
+    JazzRtcJsonBlameConsumer consumer = new JazzRtcJsonBlameConsumer("dummy.java");
+    consumer.consumeLine("1  Duarte (1058) 2015-05-29 11:23 AM  Share /* ");
+    try {
+      consumer.getLines();
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Invalid lscm JSON output");
+    }
+  }
+
+  @Test
+  public void testAnnotationsSpreadOverSeveralLines() throws IOException {
+    String output = "{\"time\": {\"ms\": 12, \"a\": [1, 2]}, \"annotations\": [{\"line-no\": 1, \"author\": {\"name\": \"Duarte\"}, \"uuid\": \"_cs1\","
+      + " \"date\": \"2015-05-29T11:23:41.000+0000\", \"content\": \"\\u0041 \\\" ] }\"}, {\"line-no\": 2, \"author\": \"Julien HENRY\", \"uuid\": \"_cs2\","
+      + " \"date\": \"2014-12-09T09:14:00.000+0000\"}]}";
+    JazzRtcJsonBlameConsumer consumer = new JazzRtcJsonBlameConsumer("dummy.java");
+    // a new line wherever the JSON allows white spaces, as a pretty printer would do
+    for (String line : output.split("(?<=[\\[{,:])(?=[ \"\\[{])")) {
+      consumer.consumeLine(line);
+    }
+
+    List<BlameLine> lines = consumer.getLines();
+    assertThat(lines).extracting("author").containsExactly("Duarte", "Julien HENRY");
+    assertThat(lines).extracting("revision").containsExactly("_cs1", "_cs2");
+  }
+
+  @Test
+  public void testTruncatedOutputIsRejected() {
+    JazzRtcJsonBlameConsumer consumer = new JazzRtcJsonBlameConsumer("dummy.java");
+    consumer.consumeLine("[{\"line-no\": 1, \"author\": \"Duarte\", \"uuid\": \"_cs1\", \"date\": \"2015-05-29T11:23:41.000+0000\"},");
+    consumer.consumeLine("{\"line-no\": 2, \"author\": ");
+    try {
+      consumer.getLines();
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Invalid lscm JSON output");
+    }
+  }
+
+  @Test
+  public void testUnbalancedOutputIsRejected() {
+    JazzRtcJsonBlameConsumer consumer = new JazzRtcJsonBlameConsumer("dummy.java");
+    consumer.consumeLine("]");
+    try {
+      consumer.getLines();
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Unexpected ]");
+    }
+  }
+
+  @Test
+  public void testInvalidEscapeIsRejected() {
+    JazzRtcJsonBlameConsumer consumer = new JazzRtcJsonBlameConsumer("dummy.java");
+    consumer.consumeLine("[{\"line-no\": 1, \"author\": \"Duarte\", \"uuid\": \"_cs1\", \"content\": \"\\uZZZZ\"}]");
+    try {
+      consumer.getLines();
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Invalid unicode escape sequence");
+    }
+  }
+
+  @Test
+  public void testAnnotationWithoutDateIsRejected() {
+    JazzRtcJsonBlameConsumer consumer = new JazzRtcJsonBlameConsumer("dummy.java");
+    consumer.consumeLine("[{\"line-no\": 1, \"author\": \"Duarte\", \"uuid\": \"_cs1\", \"date\": \"yesterday\"}]");
+    try {
+      consumer.getLines();
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("No valid date for line 1 of dummy.java");
+    }
+  }
+
+  @Test
+  public void testAnnotationWithoutChangesetIsRejected() {
+    JazzRtcJsonBlameConsumer consumer = new JazzRtcJsonBlameConsumer("dummy.java");
+    consumer.consumeLine("[{\"line-no\": 1, \"author\": \"Duarte\", \"date\": \"2015-05-29T11:23:41.000+0000\"}]");
+    try {
+      consumer.getLines();
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("No change set for line 1 of dummy.java");
+    }
+  }
+
+  @Test
+  public void testAnnotationsFoundByName() throws IOException {
+    JazzRtcJsonBlameConsumer consumer = new JazzRtcJsonBlameConsumer("dummy.java");
+    consumer.consumeLine("{\"warnings\": [\"slow\"], \"annotations\": [{\"line-no\": 1, \"author\": \"Duarte\", \"uuid\": \"_cs1\","
+      + " \"date\": \"2015-05-29T11:23:41.000+0000\"}], \"other\": []}");
+    assertThat(consumer.getLines()).extracting("revision").containsExactly("_cs1");
+  }
+}
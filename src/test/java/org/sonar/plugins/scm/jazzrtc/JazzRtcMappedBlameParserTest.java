@@ -0,0 +1,98 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.scm.BlameLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class JazzRtcMappedBlameParserTest {
+
+  private static final String OUTPUT = "1 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager foo (1) 2014-12-09 09:14 AM x\r\n"
+    + "2 Julien HENRY (1000) 2014-12-09 09:14 AM  Partager \n"
+    + "continuation of a multi-line content\n"
+    + "3  J\u00e9r\u00f4me (1001) 2015-05-29 11:23 PM  Share  * Copyright (C) 2008-2012 SonarSource\n"
+    + "10 Duarte    (1058) 2015-05-29 11:23 AM  Share  bar";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void testSameLinesAsStreamedParsing() throws IOException {
+    String output = OUTPUT.replace("10 Duarte", "4 Duarte");
+    JazzRtcBlameConsumer consumer = new JazzRtcBlameConsumer("dummy.java");
+    for (String line : output.split("\r?\n")) {
+      consumer.consumeLine(line);
+    }
+
+    List<BlameLine> lines = new JazzRtcMappedBlameParser("dummy.java", StandardCharsets.UTF_8).parse(write(output));
+
+    assertThat(lines).hasSize(4);
+    for (int i = 0; i < lines.size(); i++) {
+      assertThat(lines.get(i).author()).isEqualTo(consumer.getLines().get(i).author());
+      assertThat(lines.get(i).revision()).isEqualTo(consumer.getLines().get(i).revision());
+      assertThat(lines.get(i).date()).isEqualTo(consumer.getLines().get(i).date());
+    }
+    assertThat(lines).extracting("author").containsExactly("Julien HENRY", "Julien HENRY", "J\u00e9r\u00f4me", "Duarte");
+    // lines of a change set share their BlameLine
+    assertThat(lines.get(1)).isSameAs(lines.get(0));
+  }
+
+  @Test
+  public void testWindowsSmallerThanLines() throws IOException {
+    String output = OUTPUT.replace("10 Duarte", "4 Duarte");
+    for (int windowSize : new int[] {45, 64, 100, 1000}) {
+      List<BlameLine> lines = new JazzRtcMappedBlameParser("dummy.java", StandardCharsets.UTF_8, windowSize).parse(write(output));
+      assertThat(lines).extracting("revision").as("window of " + windowSize).containsExactly("1000", "1000", "1001", "1058");
+      assertThat(lines).extracting("author").as("window of " + windowSize).containsExactly("Julien HENRY", "Julien HENRY", "J\u00e9r\u00f4me", "Duarte");
+    }
+  }
+
+  @Test
+  public void testUnexpectedLineNumber() throws IOException {
+    try {
+      new JazzRtcMappedBlameParser("dummy.java", StandardCharsets.UTF_8).parse(write(OUTPUT));
+      fail("expected exception");
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage()).contains("Expecting blame info for line 4 but was 10");
+    }
+  }
+
+  @Test
+  public void testEmptyOutput() throws IOException {
+    assertThat(new JazzRtcMappedBlameParser("dummy.java", StandardCharsets.UTF_8).parse(write(""))).isEmpty();
+  }
+
+  private File write(String content) throws IOException {
+    File file = temp.newFile();
+    FileUtils.write(file, content, StandardCharsets.UTF_8);
+    return file;
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.StringStreamConsumer;
+import org.sonar.api.utils.command.TimeoutException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
+
+public class JazzRtcProcessExecutorTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private JazzRtcProcesses processes;
+  private JazzRtcProcessExecutor executor;
+
+  @Before
+  public void prepare() {
+    assumeFalse(System2.INSTANCE.isOsWindows());
+    processes = new JazzRtcProcesses();
+    executor = new JazzRtcProcessExecutor(System2.INSTANCE, processes);
+  }
+
+  @Test
+  public void testOutputRedirectedToFile() throws IOException {
+    File dir = temp.newFolder();
+    File output = new File(temp.getRoot(), "annotate.out");
+    Command cl = Command.create("sh").setDirectory(dir).addArguments(new String[] {"-c", "echo $JAZZ_TEST in $(basename $PWD); echo oops >&2; exit 3"})
+      .setEnvironmentVariable("JAZZ_TEST", "hello");
+    StringStreamConsumer stderr = new StringStreamConsumer();
+
+    assertThat(executor.executeToFile(cl, output, stderr, 10_000)).isEqualTo(3);
+
+    assertThat(FileUtils.readFileToString(output, Charset.defaultCharset())).isEqualTo("hello in " + dir.getName() + "\n");
+    assertThat(stderr.getOutput()).isEqualTo("oops\n");
+    assertThat(temp.getRoot().list()).containsOnly(dir.getName(), output.getName());
+  }
+
+  @Test
+  public void testTimeout() throws IOException {
+    Command cl = Command.create("sh").setDirectory(temp.getRoot()).addArguments(new String[] {"-c", "sleep 10"});
+    long start = System.currentTimeMillis();
+    try {
+      executor.executeToFile(cl, temp.newFile(), new StringStreamConsumer(), 100);
+      fail("expected timeout");
+    } catch (TimeoutException e) {
+      assertThat(System.currentTimeMillis() - start).isLessThan(5_000);
+    }
+  }
+
+  @Test
+  public void testStreamedProcessTaggedAndReleased() {
+    Command cl = Command.create("sh").setDirectory(temp.getRoot()).addArguments(new String[] {"-c", "echo owner=$" + JazzRtcProcesses.OWNER_ENV});
+    StringStreamConsumer stdout = new StringStreamConsumer();
+
+    assertThat(executor.execute(cl, stdout, new StringStreamConsumer(), 10_000)).isEqualTo(0);
+
+    assertThat(stdout.getOutput()).matches("owner=\\d+:\\d+\n");
+    assertThat(processes.runningCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testCancelAll() throws Exception {
+    Command cl = Command.create("sh").setDirectory(temp.getRoot()).addArguments(new String[] {"-c", "sleep 10"});
+    ExecutorService thread = Executors.newSingleThreadExecutor();
+    try {
+      Future<Integer> exitCode = thread.submit(() -> executor.execute(cl, new StringStreamConsumer(), new StringStreamConsumer(), 60_000));
+      while (processes.runningCount() == 0) {
+        Thread.sleep(10);
+      }
+      assertThat(processes.cancelAll()).isEqualTo(1);
+      assertThat(exitCode.get(5, TimeUnit.SECONDS)).isNotEqualTo(0);
+    } finally {
+      thread.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testProcessStoppedWhenConsumerFails() {
+    Command cl = Command.create("sh").setDirectory(temp.getRoot()).addArguments(new String[] {"-c", "while true; do echo line; done"});
+    long start = System.currentTimeMillis();
+    try {
+      executor.execute(cl, line -> {
+        throw new IllegalStateException("Unable to blame");
+      }, new StringStreamConsumer(), 60_000);
+      fail("expected exception");
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage()).isEqualTo("Unable to blame");
+      assertThat(System.currentTimeMillis() - start).isLessThan(5_000);
+    }
+    assertThat(processes.runningCount()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JazzRtcProcessesTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void testFindOrphans() throws IOException {
+    File proc = temp.newFolder("proc");
+    // this scanner
+    process(proc, "100", "PATH=/bin");
+    // started by this scanner
+    process(proc, "101", "PATH=/bin\0" + JazzRtcProcesses.OWNER_ENV + "=100:1\0HOME=/root");
+    // started by a scanner still running
+    process(proc, "102", "PATH=/bin");
+    process(proc, "103", JazzRtcProcesses.OWNER_ENV + "=102:5");
+    // started by a scanner gone
+    process(proc, "104", "HOME=/root\0" + JazzRtcProcesses.OWNER_ENV + "=99:12");
+    // not readable
+    new File(proc, "105").mkdir();
+    new File(proc, "self").mkdir();
+
+    assertThat(new JazzRtcProcesses("100", proc.toPath()).findOrphans()).containsOnly("104");
+  }
+
+  @Test
+  public void testDaemonIsNeverAnOrphan() throws IOException {
+    File proc = temp.newFolder("proc");
+    // daemon started by a scanner gone, still serving the other analyses
+    process(proc, "104", JazzRtcProcesses.OWNER_ENV + "=99:12", "/opt/jazz/scmtools/eclipse/scm\0daemon\0start");
+    process(proc, "105", JazzRtcProcesses.OWNER_ENV + "=99:12", "/opt/jazz/jdk/bin/java\0-jar\0scm.jar\0-daemon");
+    // client started by the same scanner
+    process(proc, "106", JazzRtcProcesses.OWNER_ENV + "=99:13", "/opt/jazz/scmtools/eclipse/scm\0annotate\0src/foo.xoo");
+    process(proc, "107", JazzRtcProcesses.OWNER_ENV + "=99:13", "/opt/jazz/scmtools/eclipse/lscm\0annotate\0src/my-daemon");
+    process(proc, "108", JazzRtcProcesses.OWNER_ENV + "=99:13", "/opt/jazz/scmtools/eclipse/lscm\0annotate\0daemon");
+
+    assertThat(new JazzRtcProcesses("100", proc.toPath()).findOrphans()).containsOnly("106", "107", "108");
+  }
+
+  @Test
+  public void testNoProcDir() {
+    assertThat(new JazzRtcProcesses("100", new File(temp.getRoot(), "missing").toPath()).findOrphans()).isEmpty();
+  }
+
+  private static void process(File proc, String pid, String environment) throws IOException {
+    process(proc, pid, environment, "/opt/jazz/scmtools/eclipse/lscm\0annotate");
+  }
+
+  private static void process(File proc, String pid, String environment, String cmdline) throws IOException {
+    File dir = new File(proc, pid);
+    dir.mkdir();
+    Files.write(new File(dir, "environ").toPath(), (environment + "\0").getBytes(StandardCharsets.US_ASCII));
+    Files.write(new File(dir, "cmdline").toPath(), (cmdline + "\0").getBytes(StandardCharsets.US_ASCII));
+  }
+}
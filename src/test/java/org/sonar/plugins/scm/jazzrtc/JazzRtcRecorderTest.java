@@ -0,0 +1,105 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Jazz RTC
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.jazzrtc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.StringStreamConsumer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JazzRtcRecorderTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void testRecordLinesLongerThan64KB() throws IOException {
+    char[] chars = new char[100_000];
+    Arrays.fill(chars, '\u00e9');
+    String json = "{\"annotations\": \"" + new String(chars) + "\"}";
+    File file = new File(temp.getRoot(), "lscm.rec");
+    try (JazzRtcRecorder recorder = new JazzRtcRecorder((cl, stdout, stderr, timeout) -> {
+      stdout.consumeLine(json);
+      return 0;
+    }, file)) {
+      recorder.execute(annotate(temp.getRoot()), line -> {
+      }, line -> {
+      }, 1000);
+    }
+
+    List<JazzRtcRecorder.Recording> recordings = JazzRtcRecorder.read(file);
+    assertThat(recordings).hasSize(1);
+    assertThat(recordings.get(0).stdout).containsExactly(json);
+  }
+
+  @Test
+  public void testReplayByWorkingDirectory() throws IOException {
+    File first = temp.newFolder("first");
+    File second = temp.newFolder("second");
+    File file = new File(temp.getRoot(), "lscm.rec");
+    try (JazzRtcRecorder recorder = new JazzRtcRecorder((cl, stdout, stderr, timeout) -> {
+      stdout.consumeLine("from " + cl.getDirectory().getName());
+      return 0;
+    }, file)) {
+      recorder.execute(annotate(first), line -> {
+      }, line -> {
+      }, 1000);
+      recorder.execute(annotate(second), line -> {
+      }, line -> {
+      }, 1000);
+    }
+
+    JazzRtcReplayExecutor replay = new JazzRtcReplayExecutor(JazzRtcRecorder.read(file), 0);
+    assertThat(replayed(replay, first)).containsExactly("from first");
+    assertThat(replayed(replay, second)).containsExactly("from second");
+    // recorded from several directories: no guess elsewhere
+    assertThat(replay.execute(annotate(temp.newFolder("elsewhere")), line -> {
+    }, new StringStreamConsumer(), 1000)).isEqualTo(30);
+  }
+
+  @Test
+  public void testReplayOnAnotherMachine() {
+    JazzRtcRecorder.Recording recording = new JazzRtcRecorder.Recording("/home/ci/sandbox", "annotate src/foo.xoo", 0, 10,
+      Collections.singletonList("recorded"), Collections.<String>emptyList());
+    JazzRtcReplayExecutor replay = new JazzRtcReplayExecutor(Collections.singletonList(recording), 0);
+
+    assertThat(replayed(replay, temp.getRoot())).containsExactly("recorded");
+  }
+
+  private static List<String> replayed(JazzRtcReplayExecutor replay, File directory) {
+    List<String> lines = new ArrayList<>();
+    assertThat(replay.execute(annotate(directory), lines::add, new StringStreamConsumer(), 1000)).isZero();
+    return lines;
+  }
+
+  private static Command annotate(File directory) {
+    return Command.create("lscm").setDirectory(directory).addArguments(Arrays.asList("annotate", "-u", "me", "src/foo.xoo"));
+  }
+}
@@ -21,34 +21,195 @@ package org.sonar.plugins.scm.jazzrtc;
 
 import org.junit.Rule;
 import org.junit.Test;
-import org.junit.rules.ExpectedException;
 import org.junit.rules.TemporaryFolder;
 
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.CommandExecutor;
+import org.sonar.api.utils.command.StreamConsumer;
+
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class JazzRtcScmProviderTest {
 
   @Rule
   public TemporaryFolder temp = new TemporaryFolder();
-  @Rule
-  public ExpectedException thrown = ExpectedException.none();
 
   @Test
   public void sanityCheck() {
-    assertThat(new JazzRtcScmProvider(null).key()).isEqualTo("jazz");
+    assertThat(new JazzRtcScmProvider(null, new JazzRtcSandboxIndex()).key()).isEqualTo("jazz");
   }
 
   @Test
   public void testAutodetection() throws IOException {
     File baseDirEmpty = temp.newFolder();
-    assertThat(new JazzRtcScmProvider(null).supports(baseDirEmpty)).isFalse();
+    assertThat(new JazzRtcScmProvider(null, new JazzRtcSandboxIndex()).supports(baseDirEmpty)).isFalse();
 
     File jarrBaseDir = temp.newFolder();
     new File(jarrBaseDir, ".jazz5").mkdir();
-    assertThat(new JazzRtcScmProvider(null).supports(jarrBaseDir)).isTrue();
+    assertThat(new JazzRtcScmProvider(null, new JazzRtcSandboxIndex()).supports(jarrBaseDir)).isTrue();
+  }
+
+  @Test
+  public void testAutodetectionFromNestedModule() throws IOException {
+    File sandbox = temp.newFolder();
+    new File(sandbox, ".jazz5").mkdir();
+    File module = new File(sandbox, "component/module");
+    module.mkdirs();
+
+    assertThat(new JazzRtcScmProvider(null, new JazzRtcSandboxIndex()).supports(module)).isTrue();
+  }
+
+  @Test
+  public void testRelativePathFromScmRoot() throws IOException {
+    File sandbox = temp.newFolder();
+    new File(sandbox, ".jazz5").mkdir();
+    File module = new File(sandbox, "component/module");
+    module.mkdirs();
+    JazzRtcSandboxIndex index = new JazzRtcSandboxIndex();
+
+    Path file = module.toPath().resolve("src/Foo.java");
+    assertThat((Object) new JazzRtcScmProvider(null, index).relativePathFromScmRoot(file)).isEqualTo(Paths.get("component", "module", "src", "Foo.java"));
+    assertThat(index.componentRoot(file)).isEqualTo("component");
+    assertThat(index.componentRoot(sandbox.toPath().resolve("pom.xml"))).isNull();
+  }
+
+  @Test
+  public void testRelativePathOutsideOfSandbox() throws IOException {
+    File baseDir = temp.newFolder();
+
+    assertThat(new JazzRtcScmProvider(null, new JazzRtcSandboxIndex()).relativePathFromScmRoot(baseDir.toPath().resolve("Foo.java"))).isNull();
+  }
+
+  @Test
+  public void testRevisionIdOfSingleComponent() throws IOException {
+    File sandbox = temp.newFolder();
+    new File(sandbox, ".jazz5").mkdir();
+    File module = new File(sandbox, "component/module");
+    module.mkdirs();
+    CommandExecutor commandExecutor = answerWithLastChangesets("component");
+    JazzRtcScmProvider provider = new JazzRtcScmProvider(new JazzRtcBlameCommand(commandExecutor, mock(JazzRtcConfiguration.class)), new JazzRtcSandboxIndex());
+
+    assertThat(provider.revisionId(module.toPath())).isEqualTo("_cs_component");
+    // queried once per analysis
+    assertThat(provider.revisionId(module.toPath())).isEqualTo("_cs_component");
+    verify(commandExecutor, times(2)).execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong());
+  }
+
+  @Test
+  public void testRevisionIdOfSeveralComponents() throws IOException {
+    File sandbox = temp.newFolder();
+    new File(sandbox, ".jazz5").mkdir();
+    new File(sandbox, "first").mkdir();
+    new File(sandbox, "second").mkdir();
+    List<String> loaded = new ArrayList<>(Arrays.asList("first", "second"));
+    JazzRtcBlameCommand blameCommand = new JazzRtcBlameCommand(answerWithLastChangesets(loaded), mock(JazzRtcConfiguration.class));
+
+    String revision = new JazzRtcScmProvider(blameCommand, new JazzRtcSandboxIndex()).revisionId(sandbox.toPath());
+    assertThat(revision).hasSize(40);
+    assertThat(new JazzRtcScmProvider(blameCommand, new JazzRtcSandboxIndex()).revisionId(sandbox.toPath())).isEqualTo(revision);
+
+    new File(sandbox, "third").mkdir();
+    loaded.add("third");
+    assertThat(new JazzRtcScmProvider(blameCommand, new JazzRtcSandboxIndex()).revisionId(sandbox.toPath())).isNotEqualTo(revision);
+  }
+
+  @Test
+  public void testRevisionIdIgnoresFoldersNotLoaded() throws IOException {
+    File sandbox = temp.newFolder();
+    new File(sandbox, ".jazz5").mkdir();
+    new File(sandbox, "component").mkdir();
+    new File(sandbox, "target").mkdir();
+    JazzRtcBlameCommand blameCommand = new JazzRtcBlameCommand(answerWithLastChangesets("component"), mock(JazzRtcConfiguration.class));
+
+    assertThat(new JazzRtcScmProvider(blameCommand, new JazzRtcSandboxIndex()).revisionId(sandbox.toPath())).isEqualTo("_cs_component");
+  }
+
+  @Test
+  public void testRevisionIdOfComponentWithSeveralRootFolders() throws IOException {
+    File sandbox = temp.newFolder();
+    new File(sandbox, ".jazz5").mkdir();
+    new File(sandbox, "api").mkdir();
+    new File(sandbox, "impl").mkdir();
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        if (args.get(0).equals("show")) {
+          outConsumer.consumeLine("{\"workspaces\": [{\"name\": \"ws\", \"components\": [{\"name\": \"Core\", \"uuid\": \"_core\",");
+          outConsumer.consumeLine("  \"folders\": [{\"path\": \"/api/\"}, {\"path\": \"/impl/\"}]}]}]}");
+        } else {
+          assertThat(args.get(args.indexOf("-C") + 1)).isEqualTo("_core");
+          outConsumer.consumeLine("{\"changes\": [{\"uuid\": \"_last\", \"author\": \"Duarte\", \"modified\": \"2015-03-02T10:00:00.000+0000\"}]}");
+        }
+        return 0;
+      }
+    });
+    JazzRtcBlameCommand blameCommand = new JazzRtcBlameCommand(commandExecutor, mock(JazzRtcConfiguration.class));
+
+    assertThat(new JazzRtcScmProvider(blameCommand, new JazzRtcSandboxIndex()).revisionId(sandbox.toPath())).isEqualTo("_last");
+  }
+
+  @Test
+  public void testUnknownRevisionId() throws IOException {
+    File sandbox = temp.newFolder();
+    new File(sandbox, ".jazz5").mkdir();
+    new File(sandbox, "component").mkdir();
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenReturn(2);
+    JazzRtcBlameCommand blameCommand = new JazzRtcBlameCommand(commandExecutor, mock(JazzRtcConfiguration.class));
+
+    assertThat(new JazzRtcScmProvider(blameCommand, new JazzRtcSandboxIndex()).revisionId(sandbox.toPath())).isNull();
+    assertThat(new JazzRtcScmProvider(blameCommand, new JazzRtcSandboxIndex()).revisionId(temp.newFolder().toPath())).isNull();
+  }
+
+  private static CommandExecutor answerWithLastChangesets(String... loaded) {
+    return answerWithLastChangesets(Arrays.asList(loaded));
   }
 
+  /**
+   * Every loaded folder is the root of a component with the same name, whose last change set is named after it.
+   */
+  private static CommandExecutor answerWithLastChangesets(final List<String> loaded) {
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        if (args.get(0).equals("show")) {
+          StringBuilder components = new StringBuilder();
+          for (String folder : loaded) {
+            components.append(components.length() > 0 ? ", " : "")
+              .append("{\"name\": \"").append(folder).append("\", \"folders\": [{\"path\": \"/").append(folder).append("/\"}]}");
+          }
+          outConsumer.consumeLine("{\"workspaces\": [{\"name\": \"ws\", \"components\": [" + components + "]}]}");
+          return 0;
+        }
+        String component = args.get(args.indexOf("-C") + 1);
+        outConsumer.consumeLine("{\"changes\": [{\"uuid\": \"_cs_" + component + "\", \"author\": \"Duarte\", \"modified\": \"2015-03-02T10:00:00.000+0000\"}]}");
+        return 0;
+      }
+    });
+    return commandExecutor;
+  }
 }